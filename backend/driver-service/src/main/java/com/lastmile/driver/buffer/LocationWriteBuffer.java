@@ -0,0 +1,76 @@
+package com.lastmile.driver.buffer;
+
+import com.lastmile.driver.model.Driver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-behind buffer for driver GPS pings. Only the latest location per driver is kept,
+ * and the buffer is flushed to Mongo as one unordered bulk write on a fixed delay, so the
+ * Mongo write rate is bounded by the number of drivers rather than the ping rate. Locations
+ * only update existing drivers; a driver deleted before the flush is not recreated.
+ */
+@Component
+public class LocationWriteBuffer {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final Map<String, PendingLocation> pending = new ConcurrentHashMap<>();
+
+    private record PendingLocation(String driverId, double latitude, double longitude, long timestamp) {}
+
+    public void record(String driverId, double latitude, double longitude, long timestamp) {
+        // Later pings simply replace earlier ones that have not been flushed yet
+        pending.put(driverId, new PendingLocation(driverId, latitude, longitude, timestamp));
+    }
+
+    @Scheduled(fixedDelayString = "${driver.location-buffer.flush-interval-ms:2000}")
+    public void flush() {
+        if (pending.isEmpty()) return;
+
+        List<PendingLocation> batch = new ArrayList<>();
+        for (Map.Entry<String, PendingLocation> entry : pending.entrySet()) {
+            // Only take the value we saw; a newer ping arriving meanwhile stays for the next flush
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                batch.add(entry.getValue());
+            }
+        }
+        if (batch.isEmpty()) return;
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Driver.class);
+        for (PendingLocation loc : batch) {
+            bulk.updateOne(new Query(Criteria.where("_id").is(loc.driverId())), new Update()
+                    .set("currentLocation.latitude", loc.latitude())
+                    .set("currentLocation.longitude", loc.longitude())
+                    .set("currentLocation.timestamp", loc.timestamp()));
+        }
+
+        try {
+            bulk.execute();
+        } catch (Exception e) {
+            System.err.println("Failed to flush " + batch.size() + " driver locations: " + e.getMessage());
+            // Re-queue unless a newer ping has already replaced the entry
+            for (PendingLocation loc : batch) {
+                pending.putIfAbsent(loc.driverId(), loc);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+}
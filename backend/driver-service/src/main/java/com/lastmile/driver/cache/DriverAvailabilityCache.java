@@ -0,0 +1,335 @@
+package com.lastmile.driver.cache;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.lastmile.driver.model.Driver;
+import com.lastmile.driver.proto.DriverInfo;
+import com.lastmile.driver.proto.Location;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Compact, read-through cache of driver availability (seats, stations, destination,
+ * last location, rating) used to serve GetDriverInfo without loading the driver document.
+ *
+ * Two tiers: a small per-pod near-cache in front of a Redis hash per driver. Route and
+ * trip mutations write the fresh record through and tell the other pods to drop their
+ * near-cache copy over pub/sub. Location pings only patch the location field; other
+ * pods pick those up when their near-cache entry expires.
+ */
+@Component
+public class DriverAvailabilityCache {
+
+    private static final String KEY_PREFIX = "driver:availability:";
+    private static final String FIELD_INFO = "info";
+    private static final String FIELD_LOCATION = "loc";
+    private static final String INVALIDATION_CHANNEL = "driver-availability-invalidate";
+
+    // Only patch the location of a record that is already cached, in one round trip
+    private static final DefaultRedisScript<Long> PATCH_LOCATION_SCRIPT = new DefaultRedisScript<>(
+        "if redis.call('HEXISTS', KEYS[1], 'info') == 1 then " +
+        "redis.call('HSET', KEYS[1], 'loc', ARGV[1]) return 1 end return 0", Long.class);
+
+    // Read-through fill: only creates a record that is absent, so a Mongo read taken before a
+    // concurrent write-through can never replace the newer record
+    private static final DefaultRedisScript<Long> FILL_SCRIPT = new DefaultRedisScript<>(
+        "if redis.call('HEXISTS', KEYS[1], 'info') == 1 then return 0 end " +
+        "redis.call('HSET', KEYS[1], 'info', ARGV[1]) " +
+        "if ARGV[2] ~= '' then redis.call('HSET', KEYS[1], 'loc', ARGV[2]) else redis.call('HDEL', KEYS[1], 'loc') end " +
+        "redis.call('PEXPIRE', KEYS[1], ARGV[3]) return 1", Long.class);
+
+    // Fields needed to build a DriverInfo; everything else (trips, history) stays in Mongo
+    public static final String[] PROJECTED_FIELDS = {
+        "destination", "availableSeats", "metroStations", "currentLocation", "rating"
+    };
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${driver.availability-cache.near-cache-size:10000}")
+    private int nearCacheSize;
+
+    @Value("${driver.availability-cache.near-cache-ttl-ms:5000}")
+    private long nearCacheTtlMs;
+
+    @Value("${driver.availability-cache.redis-ttl-minutes:60}")
+    private long redisTtlMinutes;
+
+    private final String podId = UUID.randomUUID().toString();
+
+    private Map<String, NearCacheEntry> nearCache;
+
+    private record NearCacheEntry(DriverInfo info, long expiresAt) {}
+
+    @PostConstruct
+    public void init() {
+        final int maxEntries = nearCacheSize;
+        nearCache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NearCacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody()).split(",", 2);
+            if (parts.length == 2 && !podId.equals(parts[0])) {
+                nearCache.remove(parts[1]);
+            }
+        }, new ChannelTopic(INVALIDATION_CHANNEL));
+    }
+
+    /**
+     * Near-cache, then Redis, then a projected Mongo read. Returns null if the driver does not exist.
+     */
+    public DriverInfo get(String driverId) {
+        NearCacheEntry entry = nearCache.get(driverId);
+        if (entry != null && entry.expiresAt() > System.currentTimeMillis()) {
+            return entry.info();
+        }
+
+        DriverInfo info = readFromRedis(driverId);
+        if (info != null) {
+            putNear(info);
+            return info;
+        }
+
+        Query query = new Query(Criteria.where("_id").is(driverId));
+        query.fields().include(PROJECTED_FIELDS);
+        Driver driver = mongoTemplate.findOne(query, Driver.class);
+        if (driver == null) {
+            nearCache.remove(driverId);
+            return null;
+        }
+        info = toDriverInfo(driver);
+        if (!fillRedis(info)) {
+            // A write-through landed since the Mongo read; serve that instead
+            DriverInfo newer = readFromRedis(driverId);
+            if (newer != null) info = newer;
+        }
+        putNear(info);
+        return info;
+    }
+
+    /**
+     * Batch form of {@link #get}: near-cache hits first, one pipelined Redis read for the rest,
+     * and a single projected $in query for the ids Redis did not hold. Unknown ids are omitted.
+     */
+    public Map<String, DriverInfo> getAll(Collection<String> driverIds) {
+        Map<String, DriverInfo> found = new LinkedHashMap<>();
+        List<String> remaining = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String driverId : new LinkedHashSet<>(driverIds)) {
+            NearCacheEntry entry = nearCache.get(driverId);
+            if (entry != null && entry.expiresAt() > now) {
+                found.put(driverId, entry.info());
+            } else {
+                remaining.add(driverId);
+            }
+        }
+        if (remaining.isEmpty()) return found;
+
+        List<String> misses = new ArrayList<>();
+        List<Object> cached = readAllFromRedis(remaining);
+        for (int i = 0; i < remaining.size(); i++) {
+            String driverId = remaining.get(i);
+            DriverInfo info = cached == null ? null : decode(driverId, (Map<?, ?>) cached.get(i));
+            if (info != null) {
+                putNear(info);
+                found.put(driverId, info);
+            } else {
+                misses.add(driverId);
+            }
+        }
+        if (misses.isEmpty()) return found;
+
+        Query query = new Query(Criteria.where("_id").in(misses));
+        query.fields().include(PROJECTED_FIELDS);
+        for (Driver driver : mongoTemplate.find(query, Driver.class)) {
+            DriverInfo info = toDriverInfo(driver);
+            if (!fillRedis(info)) {
+                DriverInfo newer = readFromRedis(info.getDriverId());
+                if (newer != null) info = newer;
+            }
+            putNear(info);
+            found.put(info.getDriverId(), info);
+        }
+        return found;
+    }
+
+    /**
+     * Write-through after a route or trip change. Accepts the driver document returned by the
+     * Mongo update so the cached record always reflects what was committed.
+     */
+    public void put(Driver driver) {
+        if (driver == null) return;
+        DriverInfo info = toDriverInfo(driver);
+        writeToRedis(info);
+        putNear(info);
+        publishInvalidation(info.getDriverId());
+    }
+
+    /**
+     * Patches only the location of an already cached record. A missing record is left for the
+     * next read to load, so a ping never creates a partial entry.
+     */
+    public void updateLocation(String driverId, double latitude, double longitude, long timestamp) {
+        Location location = Location.newBuilder()
+                .setLatitude(latitude)
+                .setLongitude(longitude)
+                .setTimestamp(timestamp)
+                .build();
+
+        NearCacheEntry entry = nearCache.get(driverId);
+        if (entry != null) {
+            putNear(entry.info().toBuilder().setCurrentLocation(location).build());
+        }
+
+        try {
+            redisTemplate.execute(PATCH_LOCATION_SCRIPT, List.of(KEY_PREFIX + driverId), encodeLocation(location));
+        } catch (Exception e) {
+            System.err.println("Failed to update cached driver location: " + e.getMessage());
+        }
+    }
+
+    public static DriverInfo toDriverInfo(Driver driver) {
+        DriverInfo.Builder builder = DriverInfo.newBuilder()
+                .setDriverId(driver.getDriverId())
+                .setDestination(driver.getDestination() != null ? driver.getDestination() : "")
+                .setAvailableSeats(driver.getAvailableSeats())
+                .addAllMetroStations(driver.getMetroStations() != null ? driver.getMetroStations() : Collections.emptyList())
+                .setRating(driver.getRating());
+
+        if (driver.getCurrentLocation() != null) {
+            builder.setCurrentLocation(Location.newBuilder()
+                    .setLatitude(driver.getCurrentLocation().getLatitude())
+                    .setLongitude(driver.getCurrentLocation().getLongitude())
+                    .setTimestamp(driver.getCurrentLocation().getTimestamp())
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private void putNear(DriverInfo info) {
+        nearCache.put(info.getDriverId(), new NearCacheEntry(info, System.currentTimeMillis() + nearCacheTtlMs));
+    }
+
+    private DriverInfo readFromRedis(String driverId) {
+        try {
+            return decode(driverId, redisTemplate.opsForHash().entries(KEY_PREFIX + driverId));
+        } catch (Exception e) {
+            System.err.println("Failed to read cached driver " + driverId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // One HGETALL per id in a single pipeline; null if Redis could not be read
+    private List<Object> readAllFromRedis(List<String> driverIds) {
+        try {
+            return redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection strings = (StringRedisConnection) connection;
+                for (String driverId : driverIds) {
+                    strings.hGetAll(KEY_PREFIX + driverId);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            System.err.println("Failed to read cached drivers: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private DriverInfo decode(String driverId, Map<?, ?> fields) {
+        try {
+            if (fields == null) return null;
+            Object encoded = fields.get(FIELD_INFO);
+            if (encoded == null) return null;
+
+            DriverInfo info = DriverInfo.parseFrom(Base64.getDecoder().decode((String) encoded));
+            Object loc = fields.get(FIELD_LOCATION);
+            if (loc != null) {
+                Location location = decodeLocation((String) loc);
+                if (location != null) {
+                    info = info.toBuilder().setCurrentLocation(location).build();
+                }
+            }
+            return info;
+        } catch (InvalidProtocolBufferException | IllegalArgumentException e) {
+            System.err.println("Discarding unreadable cached driver " + driverId + ": " + e.getMessage());
+            return null;
+        } catch (Exception e) {
+            System.err.println("Failed to read cached driver " + driverId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeToRedis(DriverInfo info) {
+        try {
+            String key = KEY_PREFIX + info.getDriverId();
+            Map<String, String> fields = new HashMap<>();
+            fields.put(FIELD_INFO, Base64.getEncoder().encodeToString(info.toBuilder().clearCurrentLocation().build().toByteArray()));
+            if (info.hasCurrentLocation()) {
+                fields.put(FIELD_LOCATION, encodeLocation(info.getCurrentLocation()));
+            }
+            redisTemplate.opsForHash().putAll(key, fields);
+            redisTemplate.expire(key, Duration.ofMinutes(redisTtlMinutes));
+        } catch (Exception e) {
+            System.err.println("Failed to cache driver " + info.getDriverId() + ": " + e.getMessage());
+        }
+    }
+
+    /** Returns false if Redis already held a record, which is then left untouched. */
+    private boolean fillRedis(DriverInfo info) {
+        try {
+            Long filled = redisTemplate.execute(FILL_SCRIPT, List.of(KEY_PREFIX + info.getDriverId()),
+                    Base64.getEncoder().encodeToString(info.toBuilder().clearCurrentLocation().build().toByteArray()),
+                    info.hasCurrentLocation() ? encodeLocation(info.getCurrentLocation()) : "",
+                    String.valueOf(Duration.ofMinutes(redisTtlMinutes).toMillis()));
+            return filled == null || filled == 1;
+        } catch (Exception e) {
+            System.err.println("Failed to cache driver " + info.getDriverId() + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    private void publishInvalidation(String driverId) {
+        try {
+            redisTemplate.convertAndSend(INVALIDATION_CHANNEL, podId + "," + driverId);
+        } catch (Exception e) {
+            System.err.println("Failed to publish driver cache invalidation: " + e.getMessage());
+        }
+    }
+
+    private static String encodeLocation(Location location) {
+        return location.getLatitude() + "," + location.getLongitude() + "," + location.getTimestamp();
+    }
+
+    private static Location decodeLocation(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 3) return null;
+        return Location.newBuilder()
+                .setLatitude(Double.parseDouble(parts[0]))
+                .setLongitude(Double.parseDouble(parts[1]))
+                .setTimestamp(Long.parseLong(parts[2]))
+                .build();
+    }
+}
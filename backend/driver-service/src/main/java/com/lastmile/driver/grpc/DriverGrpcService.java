@@ -1,12 +1,22 @@
 package com.lastmile.driver.grpc;
 
+import com.lastmile.driver.buffer.LocationWriteBuffer;
+import com.lastmile.driver.cache.DriverAvailabilityCache;
 import com.lastmile.driver.model.Driver;
+import com.lastmile.driver.presence.DriverPresenceTracker;
 import com.lastmile.driver.proto.*;
+import com.lastmile.station.proto.GetStationsAlongRouteRequest;
+import com.lastmile.station.proto.GetStationsAlongRouteResponse;
+import com.lastmile.station.proto.LatLng;
+import com.lastmile.station.proto.Station;
+import com.lastmile.station.proto.StationServiceGrpc;
 import com.lastmile.driver.repository.DriverRepository;
+import io.grpc.stub.AbstractStub;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.client.inject.GrpcClient;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -31,6 +41,33 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
 
     @Autowired
     private org.springframework.data.redis.core.StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private DriverAvailabilityCache availabilityCache;
+
+    @Autowired
+    private LocationWriteBuffer locationWriteBuffer;
+
+    @Autowired
+    private DriverPresenceTracker presenceTracker;
+
+    @GrpcClient("station-service")
+    private StationServiceGrpc.StationServiceBlockingStub stationStub;
+
+    @Autowired
+    private ServiceIdentity serviceIdentity;
+
+    // Internal calls carry driver-service's credential and the current user, not their token
+    private <T extends AbstractStub<T>> T asCaller(T stub) {
+        return stub.withInterceptors(serviceIdentity.forCurrentUser());
+    }
+
+    // Returns the updated document restricted to the fields the availability cache needs
+    private Driver updateAndProject(Query query, Update update, boolean upsert) {
+        query.fields().include(DriverAvailabilityCache.PROJECTED_FIELDS);
+        return mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true).upsert(upsert), Driver.class);
+    }
     
     @Override
     public void registerRoute(RegisterRouteRequest request,
@@ -38,34 +75,59 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
         String driverId = request.getDriverId();
         String destination = request.getDestination();
         int availableSeats = request.getAvailableSeats();
-        List<String> metroStations = new ArrayList<>(request.getMetroStationsList());
+
+        List<String> metroStations;
+        List<Driver.RouteStation> routeStations;
+        if (request.getRoutePointsCount() > 0) {
+            // Resolve the station corridor once here instead of a separate client round trip
+            try {
+                routeStations = resolveRouteStations(request.getRoutePointsList());
+            } catch (Exception e) {
+                System.err.println("Failed to resolve stations along route: " + e.getMessage());
+                responseObserver.onNext(RegisterRouteResponse.newBuilder()
+                        .setSuccess(false)
+                        .setMessage("Could not resolve stations along route")
+                        .build());
+                responseObserver.onCompleted();
+                return;
+            }
+            metroStations = routeStations.stream().map(Driver.RouteStation::getStationId).toList();
+        } else {
+            metroStations = new ArrayList<>(request.getMetroStationsList());
+            routeStations = new ArrayList<>();
+            for (int i = 0; i < metroStations.size(); i++) {
+                Driver.RouteStation rs = new Driver.RouteStation();
+                rs.setStationId(metroStations.get(i));
+                rs.setOrder(i);
+                routeStations.add(rs);
+            }
+        }
+
+        String routeId = UUID.randomUUID().toString();
         // Use atomic update to prevent overwriting location
         Query query = new Query(Criteria.where("_id").is(driverId));
         Update update = new Update()
-            .set("routeId", UUID.randomUUID().toString())
+            .set("routeId", routeId)
             .set("destination", destination)
             .set("availableSeats", availableSeats)
-            .set("metroStations", metroStations);
-            
-        mongoTemplate.upsert(query, update, Driver.class);
-        
-        // Fetch fresh driver to return routeID (technically we just generated it, but good to be consistent)
-        Driver driver = driverRepository.findById(driverId).orElse(new Driver()); 
+            .set("metroStations", metroStations)
+            .set("routeStations", routeStations);
 
-        // If driver was just made by upsert, ensure ID is set (Mongo might do this but explicit is safe for object ref)
-        driver.setDriverId(driverId);
+        // Single round trip: upsert and read back the committed availability for the cache
+        Driver driver = updateAndProject(query, update, true);
+        availabilityCache.put(driver);
+        presenceTracker.driverChanged(driver);
         
         RegisterRouteResponse response = RegisterRouteResponse.newBuilder()
-                .setRouteId(driver.getRouteId())
+                .setRouteId(routeId)
                 .setSuccess(true)
                 .setMessage("Route registered successfully")
-                .setMessage("Route registered successfully")
+                .addAllMetroStations(metroStations)
                 .build();
         
         // Notify Matching Service about new driver availability
         try {
-            String token = AuthInterceptor.AUTH_TOKEN_KEY.get();
-            String event = "DRIVER_AVAILABLE," + driverId + "," + (token != null ? token : "");
+            String event = "DRIVER_AVAILABLE," + driverId;
             redisTemplate.convertAndSend("driver-events", event);
             System.out.println("DEBUG: Published DRIVER_AVAILABLE event: " + event);
         } catch (Exception e) {
@@ -76,6 +138,60 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
         responseObserver.onCompleted();
     }
     
+    /**
+     * Asks station-service for the stations near the route and orders them by where the
+     * route passes them, so matching can reason about pickup order without more geo queries.
+     */
+    private List<Driver.RouteStation> resolveRouteStations(List<RoutePoint> routePoints) {
+        GetStationsAlongRouteRequest.Builder stationRequest = GetStationsAlongRouteRequest.newBuilder();
+        for (RoutePoint p : routePoints) {
+            stationRequest.addRoutePoints(LatLng.newBuilder().setLatitude(p.getLatitude()).setLongitude(p.getLongitude()));
+        }
+        GetStationsAlongRouteResponse stationResponse = asCaller(stationStub).getStationsAlongRoute(stationRequest.build());
+
+        // Cumulative distance along the polyline at each point
+        double[] offsets = new double[routePoints.size()];
+        for (int i = 1; i < routePoints.size(); i++) {
+            offsets[i] = offsets[i - 1] + distanceKm(routePoints.get(i - 1).getLatitude(), routePoints.get(i - 1).getLongitude(),
+                    routePoints.get(i).getLatitude(), routePoints.get(i).getLongitude());
+        }
+
+        List<Driver.RouteStation> routeStations = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Station station : stationResponse.getStationsList()) {
+            if (!seen.add(station.getStationId())) continue;
+            int nearest = 0;
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < routePoints.size(); i++) {
+                double d = distanceKm(station.getLatitude(), station.getLongitude(),
+                        routePoints.get(i).getLatitude(), routePoints.get(i).getLongitude());
+                if (d < best) {
+                    best = d;
+                    nearest = i;
+                }
+            }
+            Driver.RouteStation rs = new Driver.RouteStation();
+            rs.setStationId(station.getStationId());
+            rs.setOffsetKm(offsets[nearest]);
+            routeStations.add(rs);
+        }
+
+        routeStations.sort(Comparator.comparingDouble(Driver.RouteStation::getOffsetKm));
+        for (int i = 0; i < routeStations.size(); i++) {
+            routeStations.get(i).setOrder(i);
+        }
+        return routeStations;
+    }
+
+    private static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                   Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                   Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 6371.0 * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+    
     @Override
     public void updateLocation(UpdateLocationRequest request,
                               StreamObserver<UpdateLocationResponse> responseObserver) {
@@ -83,16 +199,12 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
         double latitude = request.getLatitude();
         double longitude = request.getLongitude();
         
-        Query query = new Query(Criteria.where("_id").is(driverId));
-        Update update = new Update()
-                .set("currentLocation.latitude", latitude)
-                .set("currentLocation.longitude", longitude)
-                .set("currentLocation.timestamp", System.currentTimeMillis());
-        
-        long modifiedCount = mongoTemplate.upsert(query, update, Driver.class).getModifiedCount();
-        
-        if (modifiedCount == 0 && !driverRepository.existsById(driverId)) {
-             UpdateLocationResponse response = UpdateLocationResponse.newBuilder()
+        long timestamp = System.currentTimeMillis();
+
+        // Drivers come into existence by registering a route; pings for any other id are refused
+        // rather than buffered, answered from the availability cache so known drivers cost no Mongo read
+        if (availabilityCache.get(driverId) == null) {
+            UpdateLocationResponse response = UpdateLocationResponse.newBuilder()
                     .setSuccess(false)
                     .setMessage("Driver not found")
                     .build();
@@ -101,6 +213,11 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
             return;
         }
         
+        // Mongo is written behind in periodic bulk flushes; the cache sees the ping immediately
+        locationWriteBuffer.record(driverId, latitude, longitude, timestamp);
+        availabilityCache.updateLocation(driverId, latitude, longitude, timestamp);
+        presenceTracker.heartbeat(driverId);
+        
         UpdateLocationResponse response = UpdateLocationResponse.newBuilder()
                 .setSuccess(true)
                 .setMessage("Location updated successfully")
@@ -124,22 +241,29 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
         record.setStatus("scheduled");
         record.setFare(request.getFare());
         
-        Query query = new Query(Criteria.where("_id").is(driverId).and("availableSeats").gt(0));
+        // Trip-service redelivers on failure, so a trip that is already active is not taken twice
+        Query query = new Query(Criteria.where("_id").is(driverId).and("availableSeats").gt(0)
+                .and("activeTrips.tripId").ne(request.getTripId()));
         Update update = new Update()
                 .push("activeTrips", record)
                 .inc("availableSeats", -1);
         
-        long modifiedCount = mongoTemplate.updateFirst(query, update, Driver.class).getModifiedCount();
+        Driver driver = updateAndProject(query, update, false);
+        availabilityCache.put(driver);
+        presenceTracker.driverChanged(driver);
+
+        boolean alreadyAccepted = driver == null && mongoTemplate.exists(new Query(Criteria.where("_id").is(driverId)
+                .and("activeTrips.tripId").is(request.getTripId())), Driver.class);
         
         AcceptTripResponse response = AcceptTripResponse.newBuilder()
-                .setSuccess(modifiedCount > 0)
-                .setMessage(modifiedCount > 0 ? "Trip accepted" : "Driver not found or no seats available")
+                .setSuccess(driver != null || alreadyAccepted)
+                .setMessage(driver != null ? "Trip accepted"
+                        : alreadyAccepted ? "Trip already accepted" : "Driver not found or no seats available")
                 .build();
         
         // write debug statements
         System.out.println("Driver " + driverId + " accepted trip " + request.getTripId());
         // print updated available seats
-        Driver driver = driverRepository.findById(driverId).orElse(null);
         if (driver != null) {
             System.out.println("Updated available seats: " + driver.getAvailableSeats());
         }
@@ -214,20 +338,18 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
                 .inc("totalEarnings", tripToMove.getFare())
                 .inc("availableSeats", 1);
 
-        long modifiedCount = mongoTemplate.updateFirst(query, update, Driver.class).getModifiedCount();
+        Driver updated = updateAndProject(query, update, false);
+        availabilityCache.put(updated);
+        presenceTracker.driverChanged(updated);
+        long modifiedCount = updated != null ? 1 : 0;
 
         // --------------------------------------------------------------------------
         // NEW: Publish Driver Available Event so Matching Service can process pending
         // --------------------------------------------------------------------------
         if (modifiedCount > 0) {
             try {
-                // Since this is a grpc call, we might not have the auth token easily available 
-                // unless we extracted it from Context or it was passed.
-                // For internal events, we might not strictly need the token if the listener is internal,
-                // but the listener uses it to call other services.
-                // We'll try to get it from the current context.
-                String token = AuthInterceptor.AUTH_TOKEN_KEY.get();
-                String event = "DRIVER_AVAILABLE," + driverId + "," + (token != null ? token : "");
+                // The listener calls other services with its own service credential, so only the ID is sent
+                String event = "DRIVER_AVAILABLE," + driverId;
                 redisTemplate.convertAndSend("driver-events", event);
                 System.out.println("DEBUG: Published DRIVER_AVAILABLE event after trip completion: " + event);
             } catch (Exception e) {
@@ -251,8 +373,8 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
                               StreamObserver<GetDriverInfoResponse> responseObserver) {
         String driverId = request.getDriverId();
         
-        Driver driver = driverRepository.findById(driverId)
-                .orElse(null);
+        // Served from the availability cache; only a cold miss reaches Mongo
+        DriverInfo driver = availabilityCache.get(driverId);
         
         GetDriverInfoResponse.Builder responseBuilder = GetDriverInfoResponse.newBuilder();
         
@@ -262,55 +384,54 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
             responseBuilder.setDriverId(driver.getDriverId())
                     .setDestination(driver.getDestination())
                     .setAvailableSeats(driver.getAvailableSeats())
-                    .addAllMetroStations(driver.getMetroStations())
+                    .addAllMetroStations(driver.getMetroStationsList())
                     .setRating(driver.getRating())
                     .setSuccess(true);
             
-            if (driver.getCurrentLocation() != null) {
-                Location location = Location.newBuilder()
-                        .setLatitude(driver.getCurrentLocation().getLatitude())
-                        .setLongitude(driver.getCurrentLocation().getLongitude())
-                        .setTimestamp(driver.getCurrentLocation().getTimestamp())
-                        .build();
-                responseBuilder.setCurrentLocation(location);
+            if (driver.hasCurrentLocation()) {
+                responseBuilder.setCurrentLocation(driver.getCurrentLocation());
             }
         }
         
         responseObserver.onNext(responseBuilder.build());
         responseObserver.onCompleted();
     }
-    
+
+    @Override
+    public void batchGetDriverInfo(BatchGetDriverInfoRequest request,
+                                   StreamObserver<BatchGetDriverInfoResponse> responseObserver) {
+        BatchGetDriverInfoResponse.Builder responseBuilder = BatchGetDriverInfoResponse.newBuilder();
+
+        if (request.getDriverIdsCount() > 0) {
+            // Served like GetDriverInfo: near-cache and Redis first, Mongo only for the misses
+            responseBuilder.putAllDrivers(availabilityCache.getAll(request.getDriverIdsList()));
+        }
+
+        responseObserver.onNext(responseBuilder.setSuccess(true).build());
+        responseObserver.onCompleted();
+    }
+
     @Override
     public void listDrivers(ListDriversRequest request,
                            StreamObserver<ListDriversResponse> responseObserver) {
         String station = request.getStation();
-        List<Driver> drivers;
-        
-        if (station == null || station.isEmpty()) {
-             drivers = driverRepository.findAll();
-        } else {
-             // Optimized: Use DB query instead of filtering in memory
-             drivers = driverRepository.findByMetroStationsContaining(station);
+        boolean anyStation = station == null || station.isEmpty();
+
+        // Only drivers seen within the presence window are candidates
+        List<String> onlineIds = presenceTracker.onlineDriverIds(station);
+        List<Driver> drivers = new ArrayList<>();
+        if (!onlineIds.isEmpty()) {
+            Criteria criteria = Criteria.where("_id").in(onlineIds);
+            if (!anyStation) {
+                // Re-check the route in case it changed since the presence snapshot was built
+                criteria = criteria.and("metroStations").is(station);
+            }
+            Query query = new Query(criteria);
+            query.fields().include(DriverAvailabilityCache.PROJECTED_FIELDS);
+            drivers = mongoTemplate.find(query, Driver.class);
         }
         
-        List<DriverInfo> driverInfos = drivers.stream().map(driver -> {
-            DriverInfo.Builder infoBuilder = DriverInfo.newBuilder()
-                    .setDriverId(driver.getDriverId())
-                    .setDestination(driver.getDestination() != null ? driver.getDestination() : "")
-                    .setAvailableSeats(driver.getAvailableSeats())
-                    .addAllMetroStations(driver.getMetroStations() != null ? driver.getMetroStations() : Collections.emptyList())
-                    .setRating(driver.getRating());
-
-            if (driver.getCurrentLocation() != null) {
-                Location location = Location.newBuilder()
-                        .setLatitude(driver.getCurrentLocation().getLatitude())
-                        .setLongitude(driver.getCurrentLocation().getLongitude())
-                        .setTimestamp(driver.getCurrentLocation().getTimestamp())
-                        .build();
-                infoBuilder.setCurrentLocation(location);
-            }
-            return infoBuilder.build();
-        }).toList();
+        List<DriverInfo> driverInfos = drivers.stream().map(DriverAvailabilityCache::toDriverInfo).toList();
         
         ListDriversResponse response = ListDriversResponse.newBuilder()
                 .addAllDrivers(driverInfos)
@@ -491,6 +612,9 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
         io.grpc.stub.ServerCallStreamObserver<MonitorDriverDashboardResponse> serverObserver = 
             (io.grpc.stub.ServerCallStreamObserver<MonitorDriverDashboardResponse>) responseObserver;
 
+        // An open dashboard stream keeps the driver online
+        presenceTracker.streamOpened(driverId);
+
         // Send initial state (Active Trips)
         List<TripInfo> activeTrips = getActiveTripsForDriver(driverId);
         if (!activeTrips.isEmpty()) {
@@ -598,6 +722,7 @@ public class DriverGrpcService extends DriverServiceGrpc.DriverServiceImplBase {
         serverObserver.setOnCancelHandler(() -> {
             System.out.println("DEBUG: Driver " + driverId + " disconnected from dashboard stream");
             redisMessageListenerContainer.removeMessageListener(listener);
+            presenceTracker.streamClosed(driverId);
         });
     }
 }
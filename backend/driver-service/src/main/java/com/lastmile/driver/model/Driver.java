@@ -14,7 +14,8 @@ public class Driver {
     private String routeId;
     private String destination;
     private int availableSeats;
-    private List<String> metroStations;
+    private List<String> metroStations; // station ids in travel order
+    private List<RouteStation> routeStations;
     private Location currentLocation;
     private double rating; 
     private int totalEarnings; 
@@ -28,6 +29,13 @@ public class Driver {
         private long timestamp;
     }
 
+    @Data
+    public static class RouteStation {
+        private String stationId;
+        private int order; // position along the route, 0 = first station passed
+        private double offsetKm; // distance from route start to the nearest route point
+    }
+
     @Data
     public static class TripRecord {
         private String tripId;
@@ -0,0 +1,242 @@
+package com.lastmile.driver.presence;
+
+import com.lastmile.driver.model.Driver;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which drivers are actually online so listing and matching skip drivers whose app
+ * went away. Heartbeats (location pings, route registration, open dashboard streams) land in
+ * a Redis sorted set of last-seen times shared by all pods. Each pod periodically turns the
+ * drivers seen within the online window into a snapshot of per-station bitmaps. A driver whose
+ * route or trips change is patched into the snapshot at once, here and on the other pods, so
+ * they do not wait for the next refresh.
+ */
+@Component
+public class DriverPresenceTracker {
+
+    private static final String PRESENCE_KEY = "drivers:presence";
+    private static final String CHANGED_CHANNEL = "driver-route-changed";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${driver.presence.online-window-ms:120000}")
+    private long onlineWindowMs;
+
+    @Value("${driver.presence.heartbeat-throttle-ms:10000}")
+    private long heartbeatThrottleMs;
+
+    @Value("${driver.presence.retention-ms:86400000}")
+    private long retentionMs;
+
+    // Last heartbeat this pod wrote per driver, so frequent pings cost at most one ZADD per throttle window
+    private final Map<String, Long> lastWritten = new ConcurrentHashMap<>();
+
+    // Drivers with an open dashboard stream on this pod; they are kept alive on every refresh
+    private final Set<String> streaming = ConcurrentHashMap.newKeySet();
+
+    // Tells this pod's own change notifications apart from the other pods'
+    private final String instanceId = UUID.randomUUID().toString();
+
+    // Changes patched in since the last refresh began, replayed over a snapshot built from older reads
+    private final Map<String, Change> recentChanges = new ConcurrentHashMap<>();
+
+    private record Change(List<String> stations, long at) {}
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /**
+     * Immutable view of the online drivers: ordinal -> id, plus one bitmap of online drivers per station.
+     */
+    private record Snapshot(String[] driverIds, Map<String, BitSet> byStation) {
+        static final Snapshot EMPTY = new Snapshot(new String[0], Map.of());
+
+        List<String> ids(BitSet bits) {
+            List<String> ids = new ArrayList<>(bits.cardinality());
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                ids.add(driverIds[i]);
+            }
+            return ids;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody()).split(",", 2);
+            if (parts.length == 2 && !instanceId.equals(parts[0])) {
+                reload(parts[1]);
+            }
+        }, new ChannelTopic(CHANGED_CHANNEL));
+    }
+
+    public void heartbeat(String driverId) {
+        long now = System.currentTimeMillis();
+        Long previous = lastWritten.get(driverId);
+        if (previous != null && now - previous < heartbeatThrottleMs) return;
+        lastWritten.put(driverId, now);
+        try {
+            redisTemplate.opsForZSet().add(PRESENCE_KEY, driverId, now);
+        } catch (Exception e) {
+            System.err.println("Failed to record heartbeat for driver " + driverId + ": " + e.getMessage());
+        }
+    }
+
+    public void streamOpened(String driverId) {
+        streaming.add(driverId);
+        lastWritten.remove(driverId);
+        heartbeat(driverId);
+    }
+
+    public void streamClosed(String driverId) {
+        streaming.remove(driverId);
+    }
+
+    /**
+     * Ids of drivers seen within the online window whose route covers the station,
+     * or all online drivers when no station is given.
+     */
+    public List<String> onlineDriverIds(String station) {
+        Snapshot current = snapshot;
+        if (station == null || station.isEmpty()) {
+            return Arrays.asList(current.driverIds());
+        }
+        BitSet bits = current.byStation().get(station);
+        return bits == null ? List.of() : current.ids(bits);
+    }
+
+    /**
+     * Puts a driver whose route or trips just changed into the snapshot under its current
+     * stations, and tells the other pods to do the same. The driver is the updated document.
+     */
+    public void driverChanged(Driver driver) {
+        if (driver == null) return;
+        String driverId = driver.getDriverId();
+        heartbeat(driverId);
+        patch(driverId, driver.getMetroStations());
+        try {
+            redisTemplate.convertAndSend(CHANGED_CHANNEL, instanceId + "," + driverId);
+        } catch (Exception e) {
+            System.err.println("Failed to publish route change for driver " + driverId + ": " + e.getMessage());
+        }
+    }
+
+    private void reload(String driverId) {
+        try {
+            Query query = new Query(Criteria.where("_id").is(driverId));
+            query.fields().include("metroStations");
+            Driver driver = mongoTemplate.findOne(query, Driver.class);
+            if (driver != null) {
+                patch(driverId, driver.getMetroStations());
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to reload presence for driver " + driverId + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void patch(String driverId, List<String> stations) {
+        List<String> current = stations == null ? List.of() : List.copyOf(stations);
+        recentChanges.put(driverId, new Change(current, System.currentTimeMillis()));
+        snapshot = withDriver(snapshot, driverId, current);
+    }
+
+    // Copy of the snapshot with the driver online at exactly the given stations
+    private static Snapshot withDriver(Snapshot base, String driverId, List<String> stations) {
+        String[] driverIds = base.driverIds();
+        int ordinal = Arrays.asList(driverIds).indexOf(driverId);
+        if (ordinal < 0) {
+            ordinal = driverIds.length;
+            driverIds = Arrays.copyOf(driverIds, driverIds.length + 1);
+            driverIds[ordinal] = driverId;
+        }
+
+        Map<String, BitSet> byStation = new HashMap<>(base.byStation());
+        for (Map.Entry<String, BitSet> entry : byStation.entrySet()) {
+            if (entry.getValue().get(ordinal) && !stations.contains(entry.getKey())) {
+                BitSet bits = (BitSet) entry.getValue().clone();
+                bits.clear(ordinal);
+                entry.setValue(bits);
+            }
+        }
+        for (String station : stations) {
+            BitSet existing = byStation.get(station);
+            if (existing != null && existing.get(ordinal)) continue;
+            BitSet bits = existing == null ? new BitSet() : (BitSet) existing.clone();
+            bits.set(ordinal);
+            byStation.put(station, bits);
+        }
+        return new Snapshot(driverIds, byStation);
+    }
+
+    @Scheduled(fixedDelayString = "${driver.presence.refresh-interval-ms:5000}")
+    public void refresh() {
+        long now = System.currentTimeMillis();
+        try {
+            ZSetOperations<String, String> zset = redisTemplate.opsForZSet();
+
+            if (!streaming.isEmpty()) {
+                Set<ZSetOperations.TypedTuple<String>> alive = new HashSet<>();
+                for (String driverId : streaming) {
+                    alive.add(new DefaultTypedTuple<>(driverId, (double) now));
+                }
+                zset.add(PRESENCE_KEY, alive);
+            }
+            zset.removeRangeByScore(PRESENCE_KEY, 0, now - retentionMs);
+
+            Set<String> online = zset.rangeByScore(PRESENCE_KEY, now - onlineWindowMs, Double.POSITIVE_INFINITY);
+            Snapshot built = build(online == null ? Set.of() : online);
+            synchronized (this) {
+                // Changes patched in while this refresh was reading may be missing from what it read
+                recentChanges.values().removeIf(change -> change.at() < now);
+                for (Map.Entry<String, Change> entry : recentChanges.entrySet()) {
+                    built = withDriver(built, entry.getKey(), entry.getValue().stations());
+                }
+                snapshot = built;
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to refresh driver presence: " + e.getMessage());
+        }
+        lastWritten.values().removeIf(t -> now - t > onlineWindowMs);
+    }
+
+    private Snapshot build(Set<String> online) {
+        if (online.isEmpty()) return Snapshot.EMPTY;
+
+        Query query = new Query(Criteria.where("_id").in(online));
+        query.fields().include("metroStations");
+        List<Driver> drivers = mongoTemplate.find(query, Driver.class);
+
+        String[] driverIds = new String[drivers.size()];
+        Map<String, BitSet> byStation = new HashMap<>();
+        for (int ordinal = 0; ordinal < drivers.size(); ordinal++) {
+            Driver driver = drivers.get(ordinal);
+            driverIds[ordinal] = driver.getDriverId();
+            if (driver.getMetroStations() == null) continue;
+            for (String station : driver.getMetroStations()) {
+                byStation.computeIfAbsent(station, s -> new BitSet()).set(ordinal);
+            }
+        }
+        return new Snapshot(driverIds, byStation);
+    }
+}
@@ -3,7 +3,6 @@ package com.lastmile.location.grpc;
 import io.grpc.*;
 import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
 @GrpcGlobalServerInterceptor
@@ -12,28 +11,49 @@ public class AuthInterceptor implements ServerInterceptor {
 
     private static final Metadata.Key<String> AUTH_KEY = Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
     public static final Context.Key<String> USER_ID_KEY = Context.key("userId");
+    public static final Context.Key<String> USER_TYPE_KEY = Context.key("userType");
     public static final Context.Key<String> AUTH_TOKEN_KEY = Context.key("authToken");
+    public static final Context.Key<String> CALLER_SERVICE_KEY = Context.key("callerService");
 
     @Autowired
-    private RedisTemplate<String, String> redisTemplate;
+    private TokenVerifier tokenVerifier;
+
+    @Autowired
+    private ServiceIdentity serviceIdentity;
 
     @Override
     public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
                                                                 Metadata headers,
                                                                 ServerCallHandler<ReqT, RespT> next) {
+        // Calls from other services carry a signed service credential and the originating user
+        String credential = headers.get(ServiceIdentity.HEADER);
+        if (credential != null) {
+            ServiceIdentity.Caller caller = serviceIdentity.verify(credential);
+            if (caller == null) {
+                call.close(Status.UNAUTHENTICATED.withDescription("Invalid service credential"), new Metadata());
+                return new ServerCall.Listener<ReqT>() {};
+            }
+            Context ctx = Context.current()
+                .withValue(USER_ID_KEY, caller.userId())
+                .withValue(USER_TYPE_KEY, caller.userType())
+                .withValue(CALLER_SERVICE_KEY, caller.service());
+            return Contexts.interceptCall(ctx, call, headers, next);
+        }
         String authHeader = headers.get(AUTH_KEY);
         if (authHeader == null || !authHeader.startsWith("Bearer ")) {
             call.close(Status.UNAUTHENTICATED.withDescription("Missing Bearer token"), new Metadata());
             return new ServerCall.Listener<ReqT>() {};
         }
         String token = authHeader.substring(7).trim();
-        String userId = redisTemplate.opsForValue().get("token:" + token);
-        if (userId == null) {
+        // Signature, expiry and deny list are all checked in memory
+        TokenVerifier.Claims claims = tokenVerifier.verify(token);
+        if (claims == null) {
             call.close(Status.UNAUTHENTICATED.withDescription("Invalid or expired token"), new Metadata());
             return new ServerCall.Listener<ReqT>() {};
         }
         Context ctx = Context.current()
-            .withValue(USER_ID_KEY, userId)
+            .withValue(USER_ID_KEY, claims.userId())
+            .withValue(USER_TYPE_KEY, claims.userType())
             .withValue(AUTH_TOKEN_KEY, token);
         return Contexts.interceptCall(ctx, call, headers, next);
     }
@@ -0,0 +1,116 @@
+package com.lastmile.matching.graph;
+
+import com.lastmile.matching.grpc.ServiceIdentity;
+import com.lastmile.station.proto.GetNeighbourStationsRequest;
+import com.lastmile.station.proto.GetNeighbourStationsResponse;
+import com.lastmile.station.proto.NeighbourStation;
+import com.lastmile.station.proto.StationServiceGrpc;
+import net.devh.boot.grpc.client.inject.GrpcClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of station-service's neighbour graph, filled one station at a time as pickups
+ * are requested. Widening a pending match's search ring is then a local lookup rather than a
+ * geo query per attempt.
+ */
+@Component
+public class StationGraph {
+
+    public record Neighbour(String stationId, double distanceKm) {}
+
+    private record Entry(List<Neighbour> neighbours, long expiresAt) {}
+
+    @GrpcClient("station-service")
+    private StationServiceGrpc.StationServiceBlockingStub stationStub;
+
+    @Autowired
+    private ServiceIdentity serviceIdentity;
+
+    // Largest ring any match can widen to; neighbours beyond it are not kept
+    @Value("${matching.fallback.max-radius-km:3.0}")
+    private double maxRadiusKm;
+
+    @Value("${matching.fallback.graph-ttl-ms:600000}")
+    private long ttlMs;
+
+    // Station IDs come from riders, so the map is bounded and evicts the least recently used
+    @Value("${matching.fallback.graph-size:2000}")
+    private int maxEntries;
+
+    // A failed load is remembered this long so an outage does not cost a call per lookup
+    @Value("${matching.fallback.graph-failure-ttl-ms:5000}")
+    private long failureTtlMs;
+
+    @Value("${matching.fallback.graph-call-timeout-ms:2000}")
+    private long callTimeoutMs;
+
+    private Map<String, Entry> entries;
+
+    @PostConstruct
+    public void init() {
+        final int limit = maxEntries;
+        entries = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > limit;
+            }
+        });
+    }
+
+    /**
+     * Stations within {@code radiusKm} of the given one, nearest first. Loads the station's
+     * neighbours on first use. While station-service cannot be reached a known station keeps its
+     * last neighbours and an unknown one has none.
+     */
+    public List<Neighbour> neighbours(String stationId, double radiusKm) {
+        if (radiusKm <= 0 || stationId == null) return List.of();
+
+        Entry entry = entries.get(stationId);
+        if (entry == null || entry.expiresAt() < System.currentTimeMillis()) {
+            Entry loaded = load(stationId);
+            if (loaded == null) {
+                loaded = new Entry(entry != null ? entry.neighbours() : List.of(),
+                        System.currentTimeMillis() + failureTtlMs);
+            }
+            entry = loaded;
+            entries.put(stationId, loaded);
+        }
+
+        List<Neighbour> within = new ArrayList<>();
+        for (Neighbour neighbour : entry.neighbours()) {
+            if (neighbour.distanceKm() > radiusKm) break;
+            within.add(neighbour);
+        }
+        return within;
+    }
+
+    // Shared by every match, so loaded as matching-service rather than on behalf of a user
+    private Entry load(String stationId) {
+        try {
+            GetNeighbourStationsResponse response = stationStub
+                    .withInterceptors(serviceIdentity.forService())
+                    .withDeadlineAfter(callTimeoutMs, TimeUnit.MILLISECONDS)
+                    .getNeighbourStations(GetNeighbourStationsRequest.newBuilder()
+                            .setStationId(stationId)
+                            .setMaxDistanceKm(maxRadiusKm)
+                            .build());
+            if (!response.getSuccess()) {
+                return new Entry(List.of(), System.currentTimeMillis() + ttlMs);
+            }
+            List<Neighbour> neighbours = new ArrayList<>(response.getNeighboursCount());
+            for (NeighbourStation neighbour : response.getNeighboursList()) {
+                neighbours.add(new Neighbour(neighbour.getStation().getStationId(), neighbour.getDistanceKm()));
+            }
+            return new Entry(List.copyOf(neighbours), System.currentTimeMillis() + ttlMs);
+        } catch (Exception e) {
+            System.err.println("Failed to load neighbours of " + stationId + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
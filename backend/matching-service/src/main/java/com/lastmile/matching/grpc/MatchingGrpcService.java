@@ -1,5 +1,6 @@
 package com.lastmile.matching.grpc;
 
+import com.lastmile.matching.graph.StationGraph;
 import com.lastmile.matching.model.Match;
 import com.lastmile.matching.proto.*;
 import com.lastmile.matching.repository.MatchRepository;
@@ -8,15 +9,23 @@ import com.lastmile.station.proto.*;
 import com.lastmile.trip.proto.*;
 import com.lastmile.notification.proto.*;
 import com.lastmile.rider.proto.*;
-import io.grpc.Metadata;
 import io.grpc.stub.AbstractStub;
-import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.client.inject.GrpcClient;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @GrpcService
 public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImplBase {
@@ -24,6 +33,9 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
     @Autowired
     private MatchRepository matchRepository;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     @Autowired
     private org.springframework.data.redis.core.StringRedisTemplate redisTemplate;
 
@@ -45,19 +57,42 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
     @GrpcClient("rider-service")
     private RiderServiceGrpc.RiderServiceBlockingStub riderStub;
 
-    private <T extends AbstractStub<T>> T attachToken(T stub) {
-        String token = AuthInterceptor.AUTH_TOKEN_KEY.get();
-        if (token == null) return stub;
-        Metadata headers = new Metadata();
-        headers.put(Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER), "Bearer " + token);
-        return MetadataUtils.attachHeaders(stub, headers);
-    }
+    @Autowired
+    private StationGraph stationGraph;
+
+    @Autowired
+    private ServiceIdentity serviceIdentity;
+
+    // Nearby-station fallback: a new request also considers stations within the initial radius,
+    // and a waiting request widens by one step per interval up to the maximum
+    @Value("${matching.fallback.initial-radius-km:1.0}")
+    private double initialRadiusKm;
 
-    private <T extends AbstractStub<T>> T attachToken(T stub, String token) {
-        if (token == null || token.isEmpty()) return attachToken(stub);
-        Metadata headers = new Metadata();
-        headers.put(Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER), "Bearer " + token);
-        return MetadataUtils.attachHeaders(stub, headers);
+    @Value("${matching.fallback.step-km:0.5}")
+    private double radiusStepKm;
+
+    @Value("${matching.fallback.step-ms:30000}")
+    private long radiusStepMs;
+
+    @Value("${matching.fallback.max-radius-km:3.0}")
+    private double maxRadiusKm;
+
+    // Drivers announced available but not yet looked up; a burst of announcements is served by one
+    // BatchGetDriverInfo call and one read of the pending matches
+    private final Set<String> availableDrivers = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService availabilityDrain = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "driver-availability-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private record DriverAtStation(com.lastmile.driver.proto.DriverInfo driver, String station) {}
+
+    // Internal calls carry matching-service's credential and the current user, if any; background
+    // work such as processing pending matches runs with the service identity alone
+    private <T extends AbstractStub<T>> T asCaller(T stub) {
+        return stub.withInterceptors(serviceIdentity.forCurrentUser());
     }
 
     private void publishMatchUpdate(String riderId, String matchId, String status, String driverId, String tripId, int fare) {
@@ -80,32 +115,54 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
             if (body.startsWith("DRIVER_AVAILABLE")) {
                 String[] parts = body.split(",");
                 if (parts.length > 1) {
-                    String driverId = parts[1];
-                    String token = parts.length > 2 ? parts[2] : null;
-                    processPendingMatches(driverId, token);
+                    availableDrivers.add(parts[1]);
+                    availabilityDrain.execute(this::drainAvailableDrivers);
                 }
             }
         }, new org.springframework.data.redis.listener.ChannelTopic("driver-events"));
     }
 
-    private void processPendingMatches(String driverId, String token) {
-        System.out.println("DEBUG: Processing pending matches for new driver: " + driverId + " with token length: " + (token != null ? token.length() : "null"));
+    @jakarta.annotation.PreDestroy
+    public void shutdown() {
+        availabilityDrain.shutdownNow();
+    }
+
+    private void drainAvailableDrivers() {
+        List<String> driverIds = new ArrayList<>();
+        for (Iterator<String> it = availableDrivers.iterator(); it.hasNext(); ) {
+            // An id announced again after this removal stays queued for the next drain
+            driverIds.add(it.next());
+            it.remove();
+        }
+        if (driverIds.isEmpty()) return;
+
         List<Match> pendingMatches = matchRepository.findByStatus("PENDING");
         System.out.println("DEBUG: Found " + pendingMatches.size() + " pending matches total");
         if (pendingMatches.isEmpty()) return;
 
         try {
-            // Fetch driver info
-            System.out.println("DEBUG: Fetching driver info for " + driverId);
-            com.lastmile.driver.proto.GetDriverInfoResponse driverInfo = attachToken(driverStub, token).getDriverInfo(
-                com.lastmile.driver.proto.GetDriverInfoRequest.newBuilder().setDriverId(driverId).build()
+            System.out.println("DEBUG: Fetching driver info for " + driverIds);
+            BatchGetDriverInfoResponse response = asCaller(driverStub).batchGetDriverInfo(
+                BatchGetDriverInfoRequest.newBuilder().addAllDriverIds(driverIds).build()
             );
-
-            if (!driverInfo.getSuccess()) {
-                 System.out.println("DEBUG: Could not fetch info for driver " + driverId + ". Success=false");
-                 return;
+            for (String driverId : driverIds) {
+                com.lastmile.driver.proto.DriverInfo driverInfo = response.getDriversMap().get(driverId);
+                if (driverInfo == null) {
+                    System.out.println("DEBUG: Could not fetch info for driver " + driverId);
+                    continue;
+                }
+                processPendingMatches(driverInfo, pendingMatches);
             }
+        } catch (Exception e) {
+            System.err.println("DEBUG: Error fetching available drivers: " + e.getMessage());
+        }
+    }
+
+    private void processPendingMatches(com.lastmile.driver.proto.DriverInfo driverInfo, List<Match> pendingMatches) {
+        String driverId = driverInfo.getDriverId();
+        System.out.println("DEBUG: Processing pending matches for new driver: " + driverId);
 
+        try {
             // Track available seats locally to prevent over-matching in this loop
             int currentSeats = driverInfo.getAvailableSeats();
             System.out.println("DEBUG: Driver " + driverId + " has " + currentSeats + " seats available.");
@@ -115,13 +172,17 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
                     System.out.println("DEBUG: No more seats available for driver " + driverId + ". Stopping match loop.");
                     break;
                 }
+                if (!"PENDING".equals(match.getStatus())) {
+                    continue; // Taken by an earlier driver in this drain
+                }
 
-                String pickup = match.getPickupStation();
+                String requested = requestedStation(match);
                 String dest = match.getDestination();
                 System.out.println("DEBUG: Checking match " + match.getMatchId() + " (Rider: " + match.getRiderId() + ")");
                 
-                // Check if this driver matches
-                boolean stationMatch = driverInfo.getMetroStationsList().contains(pickup);
+                // Check if this driver passes the requested station, or one in the match's current ring
+                String pickup = stationOnRoute(requested, driverInfo.getMetroStationsList(), searchRadiusKm(match));
+                boolean stationMatch = pickup != null;
                 
                 String driverDest = driverInfo.getDestination().toLowerCase();
                 String matchDest = dest.toLowerCase();
@@ -140,20 +201,11 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
                         driverInfoBuilder.setCurrentLocation(driverInfo.getCurrentLocation());
                     }
 
-                    int fare = calculateFare(pickup, driverInfoBuilder.build(), token);
-
-                    match.setDriverId(driverId);
-                    match.setFare(fare);
-                    match.setStatus("MATCHED"); // This effectively reserves the seat
-                    match.setTimestamp(System.currentTimeMillis());
-                    matchRepository.save(match);
-                    
-                    // Decrement local seat counter
-                    currentSeats--;
-
-                    notifyDriver(driverId, match.getRiderId(), match.getMatchId(), token);
-                    publishMatchUpdate(match.getRiderId(), match.getMatchId(), "MATCHED", driverId, null, fare);
-                    publishDriverMatchRequest(driverId, match.getMatchId(), match.getRiderId(), pickup, dest, fare);
+                    if (assignPending(match, driverInfoBuilder.build(), pickup)) {
+                        // Decrement local seat counter
+                        currentSeats--;
+                        match.setStatus("MATCHED");
+                    }
                 }
             }
 
@@ -162,6 +214,55 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
             e.printStackTrace();
         }
     }
+
+    /**
+     * Re-searches every waiting request at its current ring, so a request is matched once its
+     * ring reaches a station where a driver is already available, without waiting for that
+     * driver to announce itself again.
+     */
+    @Scheduled(fixedDelayString = "${matching.fallback.sweep-ms:30000}")
+    public void sweepPendingMatches() {
+        List<Match> pendingMatches = matchRepository.findByStatus("PENDING");
+        for (Match match : pendingMatches) {
+            try {
+                DriverAtStation found = findDriverWithinRing(requestedStation(match), match.getDestination(), null,
+                        searchRadiusKm(match));
+                if (found != null) {
+                    assignPending(match, found.driver(), found.station());
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to re-search pending match " + match.getMatchId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Matches a waiting request to the driver at the pickup station and tells both sides.
+     * Returns false if the request stopped waiting in the meantime, including when another
+     * replica assigned it first; the status check and the assignment are one conditional update.
+     */
+    private boolean assignPending(Match match, com.lastmile.driver.proto.DriverInfo driver, String pickup) {
+        String driverId = driver.getDriverId();
+        int fare = calculateFare(pickup, driver);
+        Query query = new Query(Criteria.where("_id").is(match.getMatchId()).and("status").is("PENDING"));
+        Update update = new Update()
+                .set("driverId", driverId)
+                .set("pickupStation", pickup)
+                .set("fare", fare)
+                .set("status", "MATCHED") // This effectively reserves the seat
+                .set("timestamp", System.currentTimeMillis());
+        Match assigned = mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), Match.class);
+        if (assigned == null) {
+            return false;
+        }
+        match = assigned;
+
+        notifyDriver(driverId, match.getRiderId(), match.getMatchId());
+        publishMatchUpdate(match.getRiderId(), match.getMatchId(), "MATCHED", driverId, null, fare);
+        publishDriverMatchRequest(driverId, match.getMatchId(), match.getRiderId(), pickup, match.getDestination(), fare);
+        return true;
+    }
     
     @Override
     public void matchRiderWithDriver(MatchRiderWithDriverRequest request,
@@ -174,17 +275,19 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
         MatchRiderWithDriverResponse.Builder responseBuilder = MatchRiderWithDriverResponse.newBuilder();
         
         try {
-            com.lastmile.driver.proto.DriverInfo matchedDriver = findDriver(metroStation, destination, null);
+            DriverAtStation found = findDriverWithinRing(metroStation, destination, null, initialRadiusKm);
             
-            if (matchedDriver == null) {
+            if (found == null) {
                 // Save as PENDING
                 Match match = new Match();
                 match.setMatchId(rideRequestId);
                 match.setRiderId(riderId);
                 match.setPickupStation(metroStation);
+                match.setRequestedStation(metroStation);
                 match.setDestination(destination);
                 match.setStatus("PENDING");
                 match.setTimestamp(System.currentTimeMillis());
+                match.setRequestedAt(match.getTimestamp());
                 matchRepository.save(match);
                 System.out.println("DEBUG: Match saved as PENDING: " + match);
                 responseBuilder.setMatchId(rideRequestId)
@@ -199,27 +302,33 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
                     responseObserver.onCompleted();
                     return;
                 }
-                int fare = calculateFare(metroStation, matchedDriver, null);
+                com.lastmile.driver.proto.DriverInfo matchedDriver = found.driver();
+                String pickupStation = found.station();
+                int fare = calculateFare(pickupStation, matchedDriver);
                 
                 Match match = new Match();
                 match.setMatchId(matchId);
                 match.setDriverId(matchedDriver.getDriverId());
                 match.setRiderId(riderId);
-                match.setPickupStation(metroStation);
+                match.setPickupStation(pickupStation);
+                match.setRequestedStation(metroStation);
                 match.setFare(fare);
                 match.setDestination(destination);
                 match.setStatus("MATCHED");
                 match.setTimestamp(System.currentTimeMillis());
+                match.setRequestedAt(match.getTimestamp());
                 matchRepository.save(match);
 
-                notifyDriver(matchedDriver.getDriverId(), riderId, matchId, null);
+                notifyDriver(matchedDriver.getDriverId(), riderId, matchId);
                 publishMatchUpdate(riderId, matchId, "MATCHED", matchedDriver.getDriverId(), null, fare);
-                publishDriverMatchRequest(matchedDriver.getDriverId(), matchId, riderId, metroStation, destination, fare);
+                publishDriverMatchRequest(matchedDriver.getDriverId(), matchId, riderId, pickupStation, destination, fare);
                 
                 responseBuilder.setMatchId(matchId)
                         .setDriverId(matchedDriver.getDriverId())
                         .setSuccess(true)
-                        .setMessage("Match found, waiting for driver confirmation");
+                        .setMessage(pickupStation.equals(metroStation)
+                                ? "Match found, waiting for driver confirmation"
+                                : "Match found at nearby station " + pickupStation + ", waiting for driver confirmation");
             }
         } catch (Exception e) {
             responseBuilder.setSuccess(false)
@@ -304,7 +413,7 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
                             .setFare(match.getFare())
                             .build();
                     
-                    CreateTripResponse tripResponse = attachToken(tripStub).createTrip(tripRequest);
+                    CreateTripResponse tripResponse = asCaller(tripStub).createTrip(tripRequest);
                     
                     if (tripResponse.getSuccess()) {
                         match.setStatus("CONFIRMED");
@@ -345,22 +454,26 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
                 if (match.getStatus().equals("MATCHED") && match.getDriverId().equals(driverId)) {
                     
                     // Try to find a new driver
-                    com.lastmile.driver.proto.DriverInfo newDriver = findDriver(match.getPickupStation(), match.getDestination(), driverId);
+                    DriverAtStation found = findDriverWithinRing(requestedStation(match), match.getDestination(), driverId,
+                            searchRadiusKm(match));
                     
-                    if (newDriver != null) {
+                    if (found != null) {
+                        com.lastmile.driver.proto.DriverInfo newDriver = found.driver();
                         // Update existing match with new driver
                         match.setDriverId(newDriver.getDriverId());
-                        match.setFare(calculateFare(match.getPickupStation(), newDriver, null));
+                        match.setPickupStation(found.station());
+                        match.setFare(calculateFare(found.station(), newDriver));
                         match.setStatus("MATCHED"); // Reset status to MATCHED
                         match.setTimestamp(System.currentTimeMillis()); // Update timestamp
                         matchRepository.save(match);
                         
-                        notifyDriver(newDriver.getDriverId(), match.getRiderId(), matchId, null);
+                        notifyDriver(newDriver.getDriverId(), match.getRiderId(), matchId);
                         
                         responseBuilder.setSuccess(true).setMessage("Match declined, reassigned to new driver");
                     } else {
                         // No new driver found, cancel match
                         match.setStatus("PENDING");
+                        match.setPickupStation(requestedStation(match));
                         matchRepository.save(match);
                         responseBuilder.setSuccess(true).setMessage("Match declined, no new driver found");
                     }
@@ -424,7 +537,7 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
 
                 // call CancelRideRequest in rider service
                 try {
-                    attachToken(riderStub).cancelRideRequest(
+                    asCaller(riderStub).cancelRideRequest(
                         CancelRideRequestRequest.newBuilder()
                             .setRiderId(riderId)
                             .build()
@@ -462,6 +575,51 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
         }
     }
 
+    private String requestedStation(Match match) {
+        return match.getRequestedStation() != null ? match.getRequestedStation() : match.getPickupStation();
+    }
+
+    /**
+     * How far from the requested station this match may be picked up: the initial radius, widened
+     * by one step for every interval the rider has been waiting.
+     */
+    private double searchRadiusKm(Match match) {
+        long requestedAt = match.getRequestedAt() > 0 ? match.getRequestedAt() : match.getTimestamp();
+        long waited = Math.max(0, System.currentTimeMillis() - requestedAt);
+        return Math.min(maxRadiusKm, initialRadiusKm + radiusStepKm * (waited / radiusStepMs));
+    }
+
+    /**
+     * The requested station if the driver's route passes it, otherwise the nearest station in the
+     * ring that it passes. Null if neither. Uses only the cached neighbour graph.
+     */
+    private String stationOnRoute(String requested, List<String> driverStations, double radiusKm) {
+        if (driverStations.contains(requested)) return requested;
+        for (StationGraph.Neighbour neighbour : stationGraph.neighbours(requested, radiusKm)) {
+            if (driverStations.contains(neighbour.stationId())) return neighbour.stationId();
+        }
+        return null;
+    }
+
+    /**
+     * Tries the requested station first, then each neighbour within {@code radiusKm}, nearest first.
+     */
+    private DriverAtStation findDriverWithinRing(String pickupStation, String destination, String excludeDriverId,
+                                                 double radiusKm) {
+        com.lastmile.driver.proto.DriverInfo driver = findDriver(pickupStation, destination, excludeDriverId);
+        if (driver != null) return new DriverAtStation(driver, pickupStation);
+
+        for (StationGraph.Neighbour neighbour : stationGraph.neighbours(pickupStation, radiusKm)) {
+            driver = findDriver(neighbour.stationId(), destination, excludeDriverId);
+            if (driver != null) {
+                System.out.println("DEBUG: Falling back to nearby station " + neighbour.stationId()
+                        + " (" + String.format("%.1f", neighbour.distanceKm()) + " km from " + pickupStation + ")");
+                return new DriverAtStation(driver, neighbour.stationId());
+            }
+        }
+        return null;
+    }
+
     private com.lastmile.driver.proto.DriverInfo findDriver(String pickupStation, String destination, String excludeDriverId) {
         System.out.println("DEBUG: Finding driver for station: " + pickupStation + ", destination: " + destination);
         try {
@@ -469,7 +627,7 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
                 .setStation(pickupStation)
                 .build();
                 
-            com.lastmile.driver.proto.ListDriversResponse listResponse = attachToken(driverStub).listDrivers(listRequest);
+            com.lastmile.driver.proto.ListDriversResponse listResponse = asCaller(driverStub).listDrivers(listRequest);
             
             if (listResponse.getSuccess()) {
                 System.out.println("DEBUG: Found " + listResponse.getDriversCount() + " drivers at station " + pickupStation);
@@ -512,10 +670,10 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
         return null;
     }
 
-    private int calculateFare(String pickupStation, com.lastmile.driver.proto.DriverInfo driver, String token) {
+    private int calculateFare(String pickupStation, com.lastmile.driver.proto.DriverInfo driver) {
         int fare = 50;
         try {
-            GetStationInfoResponse stationInfo = attachToken(stationStub, token).getStationInfo(
+            GetStationInfoResponse stationInfo = asCaller(stationStub).getStationInfo(
                 GetStationInfoRequest.newBuilder().setStationId(pickupStation).build()
             );
             
@@ -540,10 +698,10 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
         return fare;
     }
 
-    private void notifyDriver(String driverId, String riderId, String matchId, String token) {
+    private void notifyDriver(String driverId, String riderId, String matchId) {
         System.out.println("DEBUG: Notifying driver: " + driverId + ", rider: " + riderId + ", match: " + matchId);
         try {
-            attachToken(notificationStub, token).sendMatchNotification(
+            asCaller(notificationStub).sendMatchNotification(
                 SendMatchNotificationRequest.newBuilder()
                     .setDriverId(driverId)
                     .setRiderId(riderId)
@@ -568,6 +726,7 @@ public class MatchingGrpcService extends MatchingServiceGrpc.MatchingServiceImpl
                 // Revert to PENDING
                 match.setStatus("PENDING");
                 match.setDriverId(null); // Clear driver so it can be picked up by anyone
+                match.setPickupStation(requestedStation(match)); // The next driver may pass a different station
                 // Don't reset timestamp completely, or maybe reset it to now to give it fresh priority? 
                 // Let's keep original timestamp or just update it to now so it doesn't look like it's been waiting forever if we sort by time.
                 // Actually, for "PENDING" queue, older might be better. But here we just want it to be valid.
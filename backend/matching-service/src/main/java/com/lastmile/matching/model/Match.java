@@ -12,8 +12,10 @@ public class Match {
     private String driverId;
     private String riderId;
     private String pickupStation;
+    private String requestedStation; // station the rider asked for; pickupStation may be a nearby one
     private String destination;
     private String status; // PENDING, MATCHED, CONFIRMED, CANCELLED
     private int fare;
     private long timestamp;
+    private long requestedAt; // when the rider asked; drives how far the search ring has widened
 }
@@ -0,0 +1,141 @@
+package com.lastmile.notification.grpc;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the signed access tokens issued by user-service without any network call.
+ *
+ * A token is {@code base64url(userId|userType|expiresAt|tokenId) + "." + base64url(HMAC-SHA256)},
+ * signed with the secret shared by all services. Logged-out tokens are kept in a deny list of
+ * token IDs: a Redis sorted set scored by expiry, copied into memory at startup, kept current by
+ * {@link #REVOKED_CHANNEL} messages and re-read periodically in case a message was missed.
+ * Entries drop out once the token would have expired anyway, so the list stays small.
+ */
+@Component
+public class TokenVerifier {
+
+    public static final String REVOKED_CHANNEL = "token-revoked";
+    public static final String DENY_LIST_KEY = "tokens:revoked";
+
+    // HMAC-SHA256 keys shorter than the hash output weaken the signature
+    private static final int MIN_SECRET_BYTES = 32;
+
+    public record Claims(String userId, String userType, long expiresAt, String tokenId) {}
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${auth.token.secret}")
+    private String secret;
+
+    @Value("${auth.token.deny-list-resync-ms:60000}")
+    private long resyncMs;
+
+    // tokenId -> expiresAt
+    private final Map<String, Long> denied = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService resync = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "token-deny-list-resync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SecretKeySpec key;
+
+    @PostConstruct
+    public void init() {
+        byte[] secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        if (secretBytes.length < MIN_SECRET_BYTES) {
+            throw new IllegalStateException("auth.token.secret (AUTH_TOKEN_SECRET) must be at least "
+                    + MIN_SECRET_BYTES + " bytes");
+        }
+        key = new SecretKeySpec(secretBytes, "HmacSHA256");
+
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody()).split(",", 2);
+            if (parts.length == 2) {
+                denied.put(parts[0], Long.parseLong(parts[1]));
+            }
+        }, new ChannelTopic(REVOKED_CHANNEL));
+
+        resync.scheduleWithFixedDelay(this::loadDenyList, 0, resyncMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        resync.shutdownNow();
+    }
+
+    /**
+     * The token's claims, or null if it is malformed, wrongly signed, expired or revoked.
+     */
+    public Claims verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0 || dot == token.length() - 1) return null;
+        try {
+            String payload = token.substring(0, dot);
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+            if (!MessageDigest.isEqual(sign(payload), signature)) return null;
+
+            String[] fields = new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8).split("\\|");
+            if (fields.length != 4) return null;
+            Claims claims = new Claims(fields[0], fields[1], Long.parseLong(fields[2]), fields[3]);
+            if (claims.expiresAt() <= System.currentTimeMillis() || denied.containsKey(claims.tokenId())) {
+                return null;
+            }
+            return claims;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private void loadDenyList() {
+        try {
+            long now = System.currentTimeMillis();
+            denied.values().removeIf(expiresAt -> expiresAt <= now);
+            Set<ZSetOperations.TypedTuple<String>> entries =
+                    redisTemplate.opsForZSet().rangeByScoreWithScores(DENY_LIST_KEY, now, Double.MAX_VALUE);
+            if (entries == null) return;
+            for (ZSetOperations.TypedTuple<String> entry : entries) {
+                if (entry.getValue() != null && entry.getScore() != null) {
+                    denied.put(entry.getValue(), entry.getScore().longValue());
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to load token deny list: " + e.getMessage());
+        }
+    }
+}
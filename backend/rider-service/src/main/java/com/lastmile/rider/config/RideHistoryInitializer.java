@@ -0,0 +1,86 @@
+package com.lastmile.rider.config;
+
+import com.lastmile.rider.model.RideHistoryEntry;
+import com.lastmile.rider.model.Rider;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Creates the ride_history indexes and moves any history still embedded in rider
+ * documents (the old layout) into the ride_history collection.
+ */
+@Component
+public class RideHistoryInitializer implements CommandLineRunner {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public void run(String... args) {
+        mongoTemplate.indexOps(RideHistoryEntry.class).ensureIndex(new Index()
+                .on("riderId", Sort.Direction.ASC)
+                .on("requestTime", Sort.Direction.DESC)
+                .on("_id", Sort.Direction.DESC)
+                .named("rider_request_time"));
+        mongoTemplate.indexOps(RideHistoryEntry.class).ensureIndex(new Index()
+                .on("riderId", Sort.Direction.ASC)
+                .on("tripId", Sort.Direction.ASC)
+                .named("rider_trip"));
+
+        migrateEmbeddedHistory();
+    }
+
+    private void migrateEmbeddedHistory() {
+        Query query = new Query(Criteria.where("rideHistory").exists(true));
+        query.fields().include("rideHistory", "ratingCount");
+
+        int migrated = 0;
+        try (Stream<Document> riders = mongoTemplate.stream(query, Document.class, "riders")) {
+            for (Document rider : (Iterable<Document>) riders::iterator) {
+                String riderId = rider.getString("_id");
+                List<Document> history = rider.getList("rideHistory", Document.class, List.of());
+
+                double ratingSum = 0;
+                int ratingCount = 0;
+                if (!history.isEmpty()) {
+                    BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, RideHistoryEntry.class);
+                    for (Document doc : history) {
+                        Rider.RideRequest rr = mongoTemplate.getConverter().read(Rider.RideRequest.class, doc);
+                        if (rr.getRideRequestId() == null) continue;
+                        bulk.replaceOne(new Query(Criteria.where("_id").is(rr.getRideRequestId())),
+                                RideHistoryEntry.from(riderId, rr), FindAndReplaceOptions.options().upsert());
+                        if (rr.getRiderRatingReceived() > 0) {
+                            ratingSum += rr.getRiderRatingReceived();
+                            ratingCount++;
+                        }
+                    }
+                    bulk.execute();
+                }
+
+                Update update = new Update().unset("rideHistory");
+                if (!rider.containsKey("ratingCount")) {
+                    update.set("ratingSum", ratingSum).set("ratingCount", ratingCount);
+                }
+                mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(riderId)), update, Rider.class);
+                migrated++;
+            }
+        }
+
+        if (migrated > 0) {
+            System.out.println("Moved embedded ride history of " + migrated + " riders to ride_history");
+        }
+    }
+}
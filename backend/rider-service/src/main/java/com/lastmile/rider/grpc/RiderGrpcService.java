@@ -1,17 +1,26 @@
 package com.lastmile.rider.grpc;
 
+import com.lastmile.rider.model.RideHistoryEntry;
 import com.lastmile.rider.model.Rider;
 import com.lastmile.rider.proto.*;
 import com.lastmile.rider.repository.RiderRepository;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.Stream;
 
 @GrpcService
 public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
@@ -21,6 +30,23 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
 
     @Autowired
     private MongoTemplate mongoTemplate;
+
+    @Value("${rider.history.default-page-size:20}")
+    private int defaultPageSize;
+
+    @Value("${rider.history.max-page-size:100}")
+    private int maxPageSize;
+
+    // Most recent rides returned with the dashboard
+    @Value("${rider.history.dashboard-size:20}")
+    private int dashboardHistorySize;
+
+    private static final Sort HISTORY_ORDER = Sort.by(Sort.Direction.DESC, "requestTime", "_id");
+
+    private static Query riderWithCurrentStatus(String riderId, Rider.RideRequest.RideStatus... statuses) {
+        return new Query(Criteria.where("_id").is(riderId)
+                .and("currentRideRequest.status").in(Arrays.stream(statuses).map(Enum::name).toList()));
+    }
     
     @Override
     public void registerRideRequest(RegisterRideRequestRequest request,
@@ -33,28 +59,6 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         RegisterRideRequestResponse.Builder responseBuilder = RegisterRideRequestResponse.newBuilder();
         
         try {
-
-            Rider rider = riderRepository.findById(riderId).orElse(new Rider());
-            if (rider.getRiderId() == null) {
-                rider.setRiderId(riderId);
-                rider.setRating(5.0);
-                rider.setTotalRides(0);
-                rider.setRideHistory(new ArrayList<>());
-            }
-
-            if (rider.getCurrentRideRequest() != null) {
-                Rider.RideRequest.RideStatus status = rider.getCurrentRideRequest().getStatus();
-                if (status != Rider.RideRequest.RideStatus.COMPLETED && 
-                    status != Rider.RideRequest.RideStatus.CANCELLED) {
-                    
-                    responseBuilder.setSuccess(false)
-                            .setMessage("You already have an active ride request. Please cancel it first.");
-                    responseObserver.onNext(responseBuilder.build());
-                    responseObserver.onCompleted();
-                    return;
-                }
-            }
-
             Rider.RideRequest rideRequest = new Rider.RideRequest();
             rideRequest.setRideRequestId(UUID.randomUUID().toString());
             rideRequest.setMetroStation(metroStation);
@@ -62,14 +66,30 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
             rideRequest.setArrivalTime(arrivalTime);
             rideRequest.setRequestTime(System.currentTimeMillis());
             rideRequest.setStatus(Rider.RideRequest.RideStatus.PENDING);
-            
-            rider.setCurrentRideRequest(rideRequest);
-            
-            riderRepository.save(rider);
-            
-            responseBuilder.setRideRequestId(rideRequest.getRideRequestId())
-                    .setSuccess(true)
-                    .setMessage("Ride request registered successfully");
+
+            // Only matches a rider without an active request; a new rider is created by the upsert
+            Query query = new Query(Criteria.where("_id").is(riderId).orOperator(
+                    Criteria.where("currentRideRequest").is(null),
+                    Criteria.where("currentRideRequest.status").in(
+                            Rider.RideRequest.RideStatus.COMPLETED.name(),
+                            Rider.RideRequest.RideStatus.CANCELLED.name())));
+            Update update = new Update()
+                    .set("currentRideRequest", rideRequest)
+                    .setOnInsert("rating", 5.0)
+                    .setOnInsert("ratingSum", 0.0)
+                    .setOnInsert("ratingCount", 0)
+                    .setOnInsert("totalRides", 0);
+
+            try {
+                mongoTemplate.upsert(query, update, Rider.class);
+                responseBuilder.setRideRequestId(rideRequest.getRideRequestId())
+                        .setSuccess(true)
+                        .setMessage("Ride request registered successfully");
+            } catch (DuplicateKeyException e) {
+                // The rider exists but the guard did not match: a request is still active
+                responseBuilder.setSuccess(false)
+                        .setMessage("You already have an active ride request. Please cancel it first.");
+            }
         } catch (Exception e) {
             responseBuilder.setSuccess(false)
                     .setMessage(e.getMessage());
@@ -87,7 +107,7 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         GetRideStatusResponse.Builder responseBuilder = GetRideStatusResponse.newBuilder();
         
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
+            Rider rider = findCurrentRideRequest(riderId);
             
             if (rider != null && rider.getCurrentRideRequest() != null) {
                 Rider.RideRequest rr = rider.getCurrentRideRequest();
@@ -118,12 +138,11 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         CancelRideRequestResponse.Builder responseBuilder = CancelRideRequestResponse.newBuilder();
         
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
+            Query query = new Query(Criteria.where("_id").is(riderId).and("currentRideRequest").ne(null));
+            long modified = mongoTemplate.updateFirst(query, new Update().set("currentRideRequest", null), Rider.class)
+                    .getModifiedCount();
             
-            if (rider != null && rider.getCurrentRideRequest() != null) {
-                rider.setCurrentRideRequest(null);
-                riderRepository.save(rider);
-                
+            if (modified > 0) {
                 responseBuilder.setSuccess(true)
                         .setMessage("Ride request cancelled successfully");
             } else {
@@ -154,18 +173,35 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         String riderId = request.getRiderId();
         ListRideRequestsResponse.Builder builder = ListRideRequestsResponse.newBuilder();
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
-            if (rider != null) {
+            int pageSize = request.getPageSize() > 0 ? Math.min(request.getPageSize(), maxPageSize) : defaultPageSize;
+            String pageToken = request.getPageToken();
 
-                if (rider.getCurrentRideRequest() != null) {
+            // The active request is listed ahead of the history on the first page
+            if (pageToken.isEmpty()) {
+                Rider rider = findCurrentRideRequest(riderId);
+                if (rider != null && rider.getCurrentRideRequest() != null) {
                     builder.addRideRequests(mapToProto(rider.getCurrentRideRequest(), riderId));
                 }
+            }
 
-                if (rider.getRideHistory() != null) {
-                    for (Rider.RideRequest rr : rider.getRideHistory()) {
-                        builder.addRideRequests(mapToProto(rr, riderId));
-                    }
-                }
+            Query query = historyQuery(riderId);
+            if (!pageToken.isEmpty()) {
+                String[] cursor = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8).split(":", 2);
+                long requestTime = Long.parseLong(cursor[0]);
+                query.addCriteria(new Criteria().orOperator(
+                        Criteria.where("requestTime").lt(requestTime),
+                        Criteria.where("requestTime").is(requestTime).and("_id").lt(cursor[1])));
+            }
+            query.limit(pageSize + 1);
+
+            List<RideHistoryEntry> page = mongoTemplate.find(query, RideHistoryEntry.class);
+            for (RideHistoryEntry entry : page.subList(0, Math.min(pageSize, page.size()))) {
+                builder.addRideRequests(mapToProto(entry));
+            }
+            if (page.size() > pageSize) {
+                RideHistoryEntry last = page.get(pageSize - 1);
+                builder.setNextPageToken(Base64.getUrlEncoder().withoutPadding().encodeToString(
+                        (last.getRequestTime() + ":" + last.getRideRequestId()).getBytes(StandardCharsets.UTF_8)));
             }
             builder.setSuccess(true);
         } catch (Exception e) {
@@ -175,6 +211,44 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void exportRideRequests(ExportRideRequestsRequest request,
+                                   StreamObserver<RideRequestItem> responseObserver) {
+        String riderId = request.getRiderId();
+        ServerCallStreamObserver<RideRequestItem> serverObserver = (ServerCallStreamObserver<RideRequestItem>) responseObserver;
+        try {
+            Rider rider = findCurrentRideRequest(riderId);
+            if (rider != null && rider.getCurrentRideRequest() != null) {
+                responseObserver.onNext(mapToProto(rider.getCurrentRideRequest(), riderId));
+            }
+
+            // Cursor-backed: only one batch of history is held in memory at a time
+            try (Stream<RideHistoryEntry> history = mongoTemplate.stream(historyQuery(riderId), RideHistoryEntry.class)) {
+                Iterator<RideHistoryEntry> it = history.iterator();
+                while (it.hasNext() && !serverObserver.isCancelled()) {
+                    responseObserver.onNext(mapToProto(it.next()));
+                }
+            }
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            responseObserver.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    private Query historyQuery(String riderId) {
+        return new Query(Criteria.where("riderId").is(riderId)).with(HISTORY_ORDER);
+    }
+
+    private Rider findCurrentRideRequest(String riderId) {
+        Query query = new Query(Criteria.where("_id").is(riderId));
+        query.fields().include("currentRideRequest");
+        return mongoTemplate.findOne(query, Rider.class);
+    }
+
+    private RideRequestItem mapToProto(RideHistoryEntry entry) {
+        return mapToProto(entry.toRideRequest(), entry.getRiderId());
+    }
+
     private RideRequestItem mapToProto(Rider.RideRequest rr, String riderId) {
         return RideRequestItem.newBuilder()
                 .setRideRequestId(rr.getRideRequestId())
@@ -208,17 +282,17 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         MatchedWithDriverResponse.Builder responseBuilder = MatchedWithDriverResponse.newBuilder();
         
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
+            Query query = riderWithCurrentStatus(riderId,
+                    Rider.RideRequest.RideStatus.PENDING, Rider.RideRequest.RideStatus.MATCHED);
+            Update update = new Update()
+                    .set("currentRideRequest.status", Rider.RideRequest.RideStatus.MATCHED)
+                    .set("currentRideRequest.driverId", driverId)
+                    .set("currentRideRequest.tripId", tripId)
+                    .set("currentRideRequest.driverName", driverName);
+            long modified = mongoTemplate.updateFirst(query, update, Rider.class).getModifiedCount();
             
-            if (rider != null && rider.getCurrentRideRequest() != null) {
-                Rider.RideRequest rr = rider.getCurrentRideRequest();
-                rr.setStatus(Rider.RideRequest.RideStatus.MATCHED);
-                rr.setDriverId(driverId);
-                rr.setTripId(tripId);
-                rr.setDriverName(driverName);
+            if (modified > 0) {
                 System.out.println("Rider matched with driver successfully");   
-                riderRepository.save(rider);
-                
                 responseBuilder.setSuccess(true)
                         .setMessage("Rider matched with driver successfully");
             } else {
@@ -236,18 +310,20 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
     public void rideStarted(RideStartedRequest request,
                           StreamObserver<RideStartedResponse> responseObserver) {
         String riderId = request.getRiderId();
+        String tripId = request.getTripId();
         
         RideStartedResponse.Builder responseBuilder = RideStartedResponse.newBuilder();
         
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
+            Query query = riderWithCurrentStatus(riderId, Rider.RideRequest.RideStatus.MATCHED);
+            if (tripId != null && !tripId.isEmpty()) {
+                query.addCriteria(Criteria.where("currentRideRequest.tripId").is(tripId));
+            }
+            long modified = mongoTemplate.updateFirst(query,
+                    new Update().set("currentRideRequest.status", Rider.RideRequest.RideStatus.IN_PROGRESS),
+                    Rider.class).getModifiedCount();
             
-            if (rider != null && rider.getCurrentRideRequest() != null) {
-                Rider.RideRequest rr = rider.getCurrentRideRequest();
-                rr.setStatus(Rider.RideRequest.RideStatus.IN_PROGRESS);
-                
-                riderRepository.save(rider);
-                
+            if (modified > 0) {
                 responseBuilder.setSuccess(true)
                         .setMessage("Ride started successfully");
             } else {
@@ -265,32 +341,41 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
     public void rideCompleted(RideCompletedRequest request,
                             StreamObserver<RideCompletedResponse> responseObserver) {
         String riderId = request.getRiderId();
+        String tripId = request.getTripId();
         long dropoffTime = request.getDropoffTime();
         int fare = request.getFare();
         
         RideCompletedResponse.Builder responseBuilder = RideCompletedResponse.newBuilder();
         
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
-            
-            if (rider != null && rider.getCurrentRideRequest() != null) {
-                Rider.RideRequest rr = rider.getCurrentRideRequest();
+            Query query = riderWithCurrentStatus(riderId,
+                    Rider.RideRequest.RideStatus.MATCHED, Rider.RideRequest.RideStatus.IN_PROGRESS);
+            if (tripId != null && !tripId.isEmpty()) {
+                query.addCriteria(Criteria.where("currentRideRequest.tripId").is(tripId));
+            }
+
+            query.fields().include("currentRideRequest");
+            Rider current = mongoTemplate.findOne(query, Rider.class);
+
+            if (current != null) {
+                Rider.RideRequest rr = current.getCurrentRideRequest();
                 rr.setStatus(Rider.RideRequest.RideStatus.COMPLETED);
                 rr.setDropoffTime(dropoffTime);
                 rr.setFare(fare);
-                
-                if (rider.getRideHistory() == null) {
-                    rider.setRideHistory(new ArrayList<>());
-                }
-                rider.getRideHistory().add(rr);
-                
-                rider.setCurrentRideRequest(null);
-                rider.setTotalRides(rider.getTotalRides() + 1);
-                
-                riderRepository.save(rider);
-                
+                // History first, keyed by rideRequestId so a retry rewrites the same entry; only then
+                // is the active request cleared, so a failure in between leaves it for the retry
+                mongoTemplate.save(RideHistoryEntry.from(riderId, rr));
+
+                Query active = new Query(Criteria.where("_id").is(riderId)
+                        .and("currentRideRequest.rideRequestId").is(rr.getRideRequestId()));
+                mongoTemplate.updateFirst(active,
+                        new Update().set("currentRideRequest", null).inc("totalRides", 1), Rider.class);
+
                 responseBuilder.setSuccess(true)
                         .setMessage("Ride completed successfully");
+            } else if (tripId != null && !tripId.isEmpty() && mongoTemplate.exists(new Query(
+                    Criteria.where("riderId").is(riderId).and("tripId").is(tripId)), RideHistoryEntry.class)) {
+                responseBuilder.setSuccess(true).setMessage("Ride already completed");
             } else {
                 responseBuilder.setSuccess(false).setMessage("Rider or active request not found");
             }
@@ -309,7 +394,9 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         GetRiderDashboardResponse.Builder responseBuilder = GetRiderDashboardResponse.newBuilder();
 
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
+            Query riderQuery = new Query(Criteria.where("_id").is(riderId));
+            riderQuery.fields().include("rating", "totalRides", "currentRideRequest");
+            Rider rider = mongoTemplate.findOne(riderQuery, Rider.class);
             if (rider != null) {
                 responseBuilder.setRiderId(rider.getRiderId())
                         .setRating(rider.getRating())
@@ -320,10 +407,8 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
                     responseBuilder.setCurrentRide(mapToProto(rider.getCurrentRideRequest(), riderId));
                 }
 
-                if (rider.getRideHistory() != null) {
-                    for (Rider.RideRequest rr : rider.getRideHistory()) {
-                        responseBuilder.addRideHistory(mapToProto(rr, riderId));
-                    }
+                for (RideHistoryEntry entry : mongoTemplate.find(historyQuery(riderId).limit(dashboardHistorySize), RideHistoryEntry.class)) {
+                    responseBuilder.addRideHistory(mapToProto(entry));
                 }
             } else {
                 responseBuilder.setSuccess(false);
@@ -342,7 +427,9 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         GetRiderInfoResponse.Builder responseBuilder = GetRiderInfoResponse.newBuilder();
 
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
+            Query query = new Query(Criteria.where("_id").is(riderId));
+            query.fields().include("rating", "totalRides");
+            Rider rider = mongoTemplate.findOne(query, Rider.class);
             if (rider != null) {
                 responseBuilder.setRiderId(rider.getRiderId())
                         .setRating(rider.getRating())
@@ -371,31 +458,23 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
             if (tripId == null || tripId.isEmpty()) {
                 responseBuilder.setSuccess(false).setMessage("Trip ID is required");
             } else {
-                Rider rider = riderRepository.findById(riderId).orElse(null);
-                if (rider != null) {
-                    boolean tripFound = false;
-                    // Check history for the trip
-                    if (rider.getRideHistory() != null) {
-                        for (Rider.RideRequest rr : rider.getRideHistory()) {
-                            if (tripId.equals(rr.getTripId())) {
-                                rr.setDriverRatingGiven(rating);
-                                tripFound = true;
-                                break;
-                            }
-                        }
-                    }
-                    // Check current request (unlikely for rating, but possible if not moved to history yet)
-                    if (!tripFound && rider.getCurrentRideRequest() != null && tripId.equals(rider.getCurrentRideRequest().getTripId())) {
-                        rider.getCurrentRideRequest().setDriverRatingGiven(rating);
-                        tripFound = true;
-                    }
-                    
-                    if (tripFound) {
-                        riderRepository.save(rider);
-                        responseBuilder.setSuccess(true).setMessage("Driver rated successfully");
-                    } else {
-                        responseBuilder.setSuccess(false).setMessage("Trip not found for this rider");
-                    }
+                // Check history for the trip
+                long modified = mongoTemplate.updateFirst(
+                        new Query(Criteria.where("riderId").is(riderId).and("tripId").is(tripId)),
+                        new Update().set("driverRatingGiven", rating),
+                        RideHistoryEntry.class).getMatchedCount();
+                // Check current request (unlikely for rating, but possible if not moved to history yet)
+                if (modified == 0) {
+                    modified = mongoTemplate.updateFirst(
+                            new Query(Criteria.where("_id").is(riderId).and("currentRideRequest.tripId").is(tripId)),
+                            new Update().set("currentRideRequest.driverRatingGiven", rating),
+                            Rider.class).getMatchedCount();
+                }
+
+                if (modified > 0) {
+                    responseBuilder.setSuccess(true).setMessage("Driver rated successfully");
+                } else if (riderRepository.existsById(riderId)) {
+                    responseBuilder.setSuccess(false).setMessage("Trip not found for this rider");
                 } else {
                     responseBuilder.setSuccess(false).setMessage("Rider not found");
                 }
@@ -418,43 +497,17 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         SetRatingFromDriverResponse.Builder responseBuilder = SetRatingFromDriverResponse.newBuilder();
         
         try {
-            Rider rider = riderRepository.findById(riderId).orElse(null);
-            if (rider != null) {
-                boolean found = false;
-                if (rider.getRideHistory() != null) {
-                    for (Rider.RideRequest rr : rider.getRideHistory()) {
-                        if (rr.getTripId() != null && rr.getTripId().equals(tripId)) {
-                            rr.setRiderRatingReceived(newRating);
-                            found = true;
-                            break;
-                        }
-                    }
-                }
-                
-                if (found) {
-                    double totalRating = 0;
-                    int ratedRidesCount = 0;
-                    
-                    if (rider.getRideHistory() != null) {
-                        for (Rider.RideRequest rr : rider.getRideHistory()) {
-                            if (rr.getRiderRatingReceived() > 0) {
-                                totalRating += rr.getRiderRatingReceived();
-                                ratedRidesCount++;
-                            }
-                        }
-                    }
-                    
-                    if (ratedRidesCount > 0) {
-                        rider.setRating(totalRating / ratedRidesCount);
-                    } else {
-                        rider.setRating(newRating);
-                    }
-                    
-                    riderRepository.save(rider);
-                    responseBuilder.setSuccess(true).setMessage("Rating updated");
-                } else {
-                    responseBuilder.setSuccess(false).setMessage("Trip not found in rider history");
-                }
+            // The pre-image of the rated ride tells us whether this is a first rating or a re-rating
+            Query query = new Query(Criteria.where("riderId").is(riderId).and("tripId").is(tripId));
+            query.fields().include("riderRatingReceived");
+            RideHistoryEntry before = mongoTemplate.findAndModify(query,
+                    new Update().set("riderRatingReceived", newRating), RideHistoryEntry.class);
+
+            if (before != null) {
+                applyRatingChange(riderId, before.getRiderRatingReceived(), newRating);
+                responseBuilder.setSuccess(true).setMessage("Rating updated");
+            } else if (riderRepository.existsById(riderId)) {
+                responseBuilder.setSuccess(false).setMessage("Trip not found in rider history");
             } else {
                 responseBuilder.setSuccess(false).setMessage("Rider not found");
             }
@@ -464,6 +517,30 @@ public class RiderGrpcService extends RiderServiceGrpc.RiderServiceImplBase {
         responseObserver.onNext(responseBuilder.build());
         responseObserver.onCompleted();
     }
+
+    /**
+     * Adjusts ratingSum/ratingCount by the difference between the old and new rating of one ride
+     * and derives the average from them.
+     */
+    private void applyRatingChange(String riderId, int previousRating, int newRating) {
+        int sumDelta = Math.max(newRating, 0) - Math.max(previousRating, 0);
+        int countDelta = (newRating > 0 ? 1 : 0) - (previousRating > 0 ? 1 : 0);
+        if (sumDelta == 0 && countDelta == 0) {
+            return;
+        }
+
+        Document counters = new Document("ratingSum", new Document("$add", List.of(new Document("$ifNull", Arrays.asList("$ratingSum", 0)), sumDelta)))
+                .append("ratingCount", new Document("$add", List.of(new Document("$ifNull", Arrays.asList("$ratingCount", 0)), countDelta)));
+        Document average = new Document("rating", new Document("$cond", List.of(
+                new Document("$gt", List.of("$ratingCount", 0)),
+                new Document("$divide", List.of("$ratingSum", "$ratingCount")),
+                "$rating")));
+
+        AggregationUpdate update = AggregationUpdate.from(List.of(
+                context -> new Document("$set", counters),
+                context -> new Document("$set", average)));
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(riderId)), update, Rider.class);
+    }
 }
 
 
@@ -0,0 +1,123 @@
+package com.lastmile.rider.grpc;
+
+import io.grpc.*;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Credentials for calls between services, used instead of re-presenting the end user's token.
+ *
+ * The {@link #HEADER} value is {@code base64url(service|userId|userType|issuedAt) + "." +
+ * base64url(HMAC-SHA256)}, signed with a secret only the services share. It is minted when each
+ * call starts, so AuthInterceptor accepts it only for a short window. The user fields carry the
+ * user whose request caused the call and are empty for background work.
+ */
+@Component
+public class ServiceIdentity {
+
+    public static final Metadata.Key<String> HEADER = Metadata.Key.of("x-internal-auth", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+
+    private static final int MIN_SECRET_BYTES = 32;
+
+    public record Caller(String service, String userId, String userType) {}
+
+    @Value("${spring.application.name}")
+    private String serviceName;
+
+    @Value("${auth.internal.secret}")
+    private String secret;
+
+    // Allowed difference between a credential's issue time and now, covering clock skew between pods
+    @Value("${auth.internal.max-age-ms:30000}")
+    private long maxAgeMs;
+
+    private SecretKeySpec key;
+
+    @PostConstruct
+    public void init() {
+        byte[] secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        if (secretBytes.length < MIN_SECRET_BYTES) {
+            throw new IllegalStateException("auth.internal.secret (AUTH_INTERNAL_SECRET) must be at least "
+                    + MIN_SECRET_BYTES + " bytes");
+        }
+        key = new SecretKeySpec(secretBytes, "HmacSHA256");
+    }
+
+    /** Attaches this service's identity and the user of the request being served, if any. */
+    public ClientInterceptor forCurrentUser() {
+        return forUser(AuthInterceptor.USER_ID_KEY.get(), AuthInterceptor.USER_TYPE_KEY.get());
+    }
+
+    public ClientInterceptor forUser(String userId, String userType) {
+        String user = userId != null ? userId : "";
+        String type = userType != null ? userType : "";
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                       CallOptions callOptions, Channel next) {
+                return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                    @Override
+                    public void start(Listener<RespT> responseListener, Metadata headers) {
+                        headers.put(HEADER, credential(user, type));
+                        super.start(responseListener, headers);
+                    }
+                };
+            }
+        };
+    }
+
+    /** Attaches only this service's identity, for work no user asked for. */
+    public ClientInterceptor forService() {
+        return forUser(null, null);
+    }
+
+    /**
+     * The calling service and user, or null if the credential is malformed, wrongly signed or stale.
+     */
+    public Caller verify(String credential) {
+        int dot = credential.indexOf('.');
+        if (dot <= 0 || dot == credential.length() - 1) return null;
+        try {
+            String payload = credential.substring(0, dot);
+            byte[] signature = Base64.getUrlDecoder().decode(credential.substring(dot + 1));
+            if (!MessageDigest.isEqual(sign(payload), signature)) return null;
+
+            String[] fields = new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8).split("\\|", -1);
+            if (fields.length != 4) return null;
+            long issuedAt = Long.parseLong(fields[3]);
+            if (Math.abs(System.currentTimeMillis() - issuedAt) > maxAgeMs) return null;
+            return new Caller(fields[0], emptyToNull(fields[1]), emptyToNull(fields[2]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private String credential(String userId, String userType) {
+        String payload = BASE64.encodeToString((serviceName + "|" + userId + "|" + userType + "|" + System.currentTimeMillis())
+                .getBytes(StandardCharsets.UTF_8));
+        return payload + "." + BASE64.encodeToString(sign(payload));
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
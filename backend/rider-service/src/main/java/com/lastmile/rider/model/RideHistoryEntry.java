@@ -0,0 +1,66 @@
+package com.lastmile.rider.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A finished ride, stored one document per ride so history can be paged by
+ * (riderId, requestTime desc) instead of being embedded in the rider document.
+ */
+@Data
+@Document(collection = "ride_history")
+public class RideHistoryEntry {
+    @Id
+    private String rideRequestId;
+    private String riderId;
+    private String metroStation;
+    private String destination;
+    private long requestTime;
+    private long arrivalTime;
+    private long dropoffTime;
+    private Rider.RideRequest.RideStatus status;
+    private String driverId;
+    private String tripId;
+    private String driverName;
+    private int fare;
+    private int driverRatingGiven;
+    private int riderRatingReceived;
+
+    public static RideHistoryEntry from(String riderId, Rider.RideRequest rr) {
+        RideHistoryEntry entry = new RideHistoryEntry();
+        entry.setRideRequestId(rr.getRideRequestId());
+        entry.setRiderId(riderId);
+        entry.setMetroStation(rr.getMetroStation());
+        entry.setDestination(rr.getDestination());
+        entry.setRequestTime(rr.getRequestTime());
+        entry.setArrivalTime(rr.getArrivalTime());
+        entry.setDropoffTime(rr.getDropoffTime());
+        entry.setStatus(rr.getStatus());
+        entry.setDriverId(rr.getDriverId());
+        entry.setTripId(rr.getTripId());
+        entry.setDriverName(rr.getDriverName());
+        entry.setFare(rr.getFare());
+        entry.setDriverRatingGiven(rr.getDriverRatingGiven());
+        entry.setRiderRatingReceived(rr.getRiderRatingReceived());
+        return entry;
+    }
+
+    public Rider.RideRequest toRideRequest() {
+        Rider.RideRequest rr = new Rider.RideRequest();
+        rr.setRideRequestId(rideRequestId);
+        rr.setMetroStation(metroStation);
+        rr.setDestination(destination);
+        rr.setRequestTime(requestTime);
+        rr.setArrivalTime(arrivalTime);
+        rr.setDropoffTime(dropoffTime);
+        rr.setStatus(status);
+        rr.setDriverId(driverId);
+        rr.setTripId(tripId);
+        rr.setDriverName(driverName);
+        rr.setFare(fare);
+        rr.setDriverRatingGiven(driverRatingGiven);
+        rr.setRiderRatingReceived(riderRatingReceived);
+        return rr;
+    }
+}
@@ -12,8 +12,9 @@ public class Rider {
     @Id
     private String riderId;
     private double rating; 
+    private double ratingSum; // running totals of ratings received, so rating = ratingSum / ratingCount
+    private int ratingCount;
     private int totalRides; 
-    private List<RideRequest> rideHistory;
     private RideRequest currentRideRequest;
 
     @Data
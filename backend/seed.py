@@ -34,6 +34,8 @@ def fetch_and_store():
                 }
                 r.rpush(key, json.dumps(data))
             print(f"Done! Stored {len(results)} stations in Redis.")
+            # station-service imports the new list into its GEO set and data hash
+            r.publish("stations-import", key)
         else:
             print(f"API Error: {response.text}")
     except Exception as e:
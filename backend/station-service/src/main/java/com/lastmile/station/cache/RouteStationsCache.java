@@ -0,0 +1,136 @@
+package com.lastmile.station.cache;
+
+import com.lastmile.station.proto.LatLng;
+import com.lastmile.station.proto.Station;
+import com.lastmile.station.snapshot.StationSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+/**
+ * Bounded LRU of GetStationsAlongRoute results, keyed by a fingerprint of the simplified route.
+ *
+ * The fingerprint is the sequence of geohash cells the route's points fall in, with repeats
+ * collapsed, so drivers on the same corridor share an entry even when their polylines differ
+ * by a few metres. Entries belong to one snapshot version; the first lookup against a newer
+ * snapshot drops them all.
+ */
+@Component
+public class RouteStationsCache {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${station.route-cache.size:1000}")
+    private int maxEntries;
+
+    // Geohash length per route point; 7 characters is a cell of roughly 150 m
+    @Value("${station.route-cache.geohash-precision:7}")
+    private int precision;
+
+    private Map<String, List<Station>> entries;
+    private String snapshotVersion = "";
+
+    private Counter hits;
+    private Counter misses;
+    private Counter invalidations;
+
+    @PostConstruct
+    public void init() {
+        final int limit = maxEntries;
+        entries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Station>> eldest) {
+                return size() > limit;
+            }
+        };
+        hits = meterRegistry.counter("station.route_cache.requests", "result", "hit");
+        misses = meterRegistry.counter("station.route_cache.requests", "result", "miss");
+        invalidations = meterRegistry.counter("station.route_cache.invalidations");
+        meterRegistry.gauge("station.route_cache.size", this, cache -> cache.size());
+    }
+
+    public String fingerprint(List<LatLng> simplifiedRoute) {
+        StringBuilder key = new StringBuilder(simplifiedRoute.size() * (precision + 1));
+        String previous = null;
+        for (LatLng point : simplifiedRoute) {
+            String cell = geohash(point.getLatitude(), point.getLongitude(), precision);
+            if (!cell.equals(previous)) {
+                if (previous != null) key.append('.');
+                key.append(cell);
+                previous = cell;
+            }
+        }
+        return key.toString();
+    }
+
+    /** Cached stations for the route under this snapshot, or null. */
+    public synchronized List<Station> get(StationSnapshot snapshot, String fingerprint) {
+        syncVersion(snapshot);
+        List<Station> stations = entries.get(fingerprint);
+        (stations != null ? hits : misses).increment();
+        return stations;
+    }
+
+    public synchronized void put(StationSnapshot snapshot, String fingerprint, List<Station> stations) {
+        syncVersion(snapshot);
+        entries.put(fingerprint, List.copyOf(stations));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void syncVersion(StationSnapshot snapshot) {
+        if (!snapshot.version().equals(snapshotVersion)) {
+            if (!entries.isEmpty()) {
+                invalidations.increment();
+            }
+            entries.clear();
+            snapshotVersion = snapshot.version();
+        }
+    }
+
+    static String geohash(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90, minLng = -180, maxLng = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLng + maxLng) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLng = mid;
+                } else {
+                    ch <<= 1;
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch <<= 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE32[ch]);
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+}
@@ -0,0 +1,194 @@
+package com.lastmile.station.config;
+
+import com.lastmile.station.proto.Station;
+import com.lastmile.station.snapshot.StationSnapshot;
+import com.lastmile.station.snapshot.StationSnapshotHolder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports the station list written by seed.py into the GEO set and data hash the service reads.
+ *
+ * Both structures are built under staging keys named after the content version, written in one
+ * pipeline, then RENAMEd over the live keys in a single MULTI/EXEC so readers never see a partial
+ * set. A Redis lock makes sure only one replica imports; the others just reload their snapshot
+ * when the refresh signal arrives. Importing the same content twice is a no-op.
+ *
+ * Runs once at startup, again whenever seed.py announces new data on {@link #IMPORT_CHANNEL}, and
+ * periodically, so an import abandoned by a replica that died holding the lock is picked up by
+ * another one once the lock expires.
+ */
+@Component
+public class StationImporter implements CommandLineRunner {
+
+    public static final String IMPORT_CHANNEL = "stations-import";
+
+    private static final String SOURCE_KEY = "bangalore_metro_stations";
+    private static final String GEO_KEY = "stations:geo";
+    private static final String DATA_KEY = "stations:data";
+    private static final String VERSION_KEY = StationSnapshotHolder.VERSION_KEY;
+    private static final String LOCK_KEY = "stations:import:lock";
+
+    // Members per GEOADD/HSET inside the pipeline
+    private static final int BATCH_SIZE = 500;
+
+    private static final DefaultRedisScript<Long> RELEASE_LOCK_SCRIPT = new DefaultRedisScript<>(
+        "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0", Long.class);
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private StationSnapshotHolder snapshots;
+
+    @Value("${station.import.lock-ttl-ms:60000}")
+    private long lockTtlMs;
+
+    @Value("${station.import.check-ms:60000}")
+    private long checkMs;
+
+    private final ScheduledExecutorService check = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "station-import-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public void run(String... args) {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> importStations(),
+                new ChannelTopic(IMPORT_CHANNEL));
+        importStations();
+        // Cheap when nothing changed: one LRANGE and a version compare
+        check.scheduleWithFixedDelay(this::importStations, checkMs, checkMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        check.shutdownNow();
+    }
+
+    /**
+     * Imports the current source list if its content differs from the live version.
+     * Returns true if this call swapped in a new set.
+     */
+    public synchronized boolean importStations() {
+        try {
+            List<String> source = redisTemplate.opsForList().range(SOURCE_KEY, 0, -1);
+            if (source == null || source.isEmpty()) {
+                System.err.println("No station data in '" + SOURCE_KEY + "'. Nothing to import.");
+                return false;
+            }
+
+            // Keyed by station ID; a later duplicate replaces an earlier one
+            Map<String, String> jsonById = new LinkedHashMap<>();
+            Map<String, Station> stationsById = new LinkedHashMap<>();
+            for (String json : source) {
+                try {
+                    Station station = StationSnapshotHolder.parseStation(json);
+                    jsonById.put(station.getStationId(), json);
+                    stationsById.put(station.getStationId(), station);
+                } catch (Exception e) {
+                    System.err.println("Skipping unreadable station: " + json);
+                }
+            }
+            if (stationsById.isEmpty()) {
+                return false;
+            }
+
+            String version = StationSnapshot.of(stationsById.values()).version();
+            if (version.equals(redisTemplate.opsForValue().get(VERSION_KEY))) {
+                System.out.println("Stations " + version + " already imported.");
+                return false;
+            }
+
+            String token = UUID.randomUUID().toString();
+            Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, token, Duration.ofMillis(lockTtlMs));
+            if (!Boolean.TRUE.equals(locked)) {
+                System.out.println("Another replica is importing stations; waiting for its refresh signal.");
+                return false;
+            }
+
+            try {
+                String stagingGeo = GEO_KEY + ":" + version;
+                String stagingData = DATA_KEY + ":" + version;
+                writeStaging(stagingGeo, stagingData, stationsById, jsonById);
+                swap(stagingGeo, stagingData, version);
+            } finally {
+                redisTemplate.execute(RELEASE_LOCK_SCRIPT, List.of(LOCK_KEY), token);
+            }
+
+            System.out.println("Imported " + stationsById.size() + " stations as " + version + ".");
+            snapshots.refresh();
+            redisTemplate.convertAndSend(StationSnapshotHolder.REFRESH_CHANNEL, version);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Station import failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // One pipeline: clear any leftover staging keys, then batched GEOADD and HSET
+    private void writeStaging(String stagingGeo, String stagingData, Map<String, Station> stations, Map<String, String> json) {
+        byte[] geoKey = bytes(stagingGeo);
+        byte[] dataKey = bytes(stagingData);
+        List<String> ids = new ArrayList<>(stations.keySet());
+
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.keyCommands().del(geoKey, dataKey);
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                Map<byte[], Point> points = new HashMap<>();
+                Map<byte[], byte[]> values = new HashMap<>();
+                for (String id : ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()))) {
+                    Station station = stations.get(id);
+                    points.put(bytes(id), new Point(station.getLongitude(), station.getLatitude()));
+                    values.put(bytes(id), bytes(json.get(id)));
+                }
+                connection.geoCommands().geoAdd(geoKey, points);
+                connection.hashCommands().hMSet(dataKey, values);
+            }
+            return null;
+        });
+    }
+
+    // Atomic swap of both structures and the version marker
+    private void swap(String stagingGeo, String stagingData, String version) {
+        redisTemplate.execute(new SessionCallback<List<Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> List<Object> execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                ops.multi();
+                ops.rename(stagingGeo, GEO_KEY);
+                ops.rename(stagingData, DATA_KEY);
+                ops.opsForValue().set(VERSION_KEY, version);
+                return ops.exec();
+            }
+        });
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
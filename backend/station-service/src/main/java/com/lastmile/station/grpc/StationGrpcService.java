@@ -1,131 +1,62 @@
 package com.lastmile.station.grpc;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lastmile.station.cache.RouteStationsCache;
 import com.lastmile.station.proto.*;
+import com.lastmile.station.snapshot.StationSnapshot;
+import com.lastmile.station.snapshot.StationSnapshotHolder;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.geo.Circle;
-import org.springframework.data.geo.Distance;
-import org.springframework.data.geo.GeoResult;
-import org.springframework.data.geo.GeoResults;
-import org.springframework.data.geo.Metrics;
-import org.springframework.data.geo.Point;
-import org.springframework.data.redis.connection.RedisGeoCommands;
-import org.springframework.data.redis.core.StringRedisTemplate;
-
-import javax.annotation.PostConstruct;
-import java.io.IOException;
+import org.springframework.beans.factory.annotation.Value;
+
 import java.util.*;
-import java.util.stream.Collectors;
 
 @GrpcService
 public class StationGrpcService extends StationServiceGrpc.StationServiceImplBase {
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private StationSnapshotHolder snapshots;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    
-    // Legacy key for backward compatibility / initial load source
-    private static final String REDIS_KEY_LIST = "bangalore_metro_stations";
-    
-    // New keys for Geo implementation
-    private static final String REDIS_KEY_GEO = "stations:geo";
-    private static final String REDIS_KEY_DATA = "stations:data";
+    @Autowired
+    private RouteStationsCache routeCache;
     
     private static final double SEARCH_RADIUS_KM = 3.0;
 
-    // =======================================================================
-    // INIT: Data Migration / Setup
-    // =======================================================================
-    @PostConstruct
-    public void initGeoData() {
-        System.out.println("Checking Redis Geo Data...");
-        
-        // Check if geo key exists (or has elements)
-        Long geoCount = redisTemplate.opsForZSet().size(REDIS_KEY_GEO);
-
-        if (geoCount != null && geoCount > 0) {
-            System.out.println("Geo data exists (" + geoCount + " stations). Skipping initialization.");
-            return;
-        }
-
-        System.out.println("Geo data missing. Attempting migration from list: " + REDIS_KEY_LIST);
-        List<String> jsonList = redisTemplate.opsForList().range(REDIS_KEY_LIST, 0, -1);
-
-        if (jsonList == null || jsonList.isEmpty()) {
-            System.err.println("No legacy data found in '" + REDIS_KEY_LIST + "'. Cannot initialize Geo data.");
-            return;
-        }
-
-        for (String json : jsonList) {
-            try {
-                RedisStationDto dto = objectMapper.readValue(json, RedisStationDto.class);
-                String stationId = dto.name; // Use name as ID
+    // Lowest trigram similarity accepted when a name has no exact or normalised match
+    @Value("${station.name-match.min-similarity:0.5}")
+    private double minNameSimilarity;
 
-                // 1. Add to Geo Set
-                redisTemplate.opsForGeo().add(REDIS_KEY_GEO, new Point(dto.location.lng, dto.location.lat), stationId);
+    private static final int DEFAULT_SEARCH_LIMIT = 10;
+    private static final int MAX_SEARCH_LIMIT = 50;
 
-                // 2. Add to Data Hash
-                redisTemplate.opsForHash().put(REDIS_KEY_DATA, stationId, json);
-                
-                System.out.println("Migrated: " + stationId);
-
-            } catch (Exception e) {
-                System.err.println("Failed to migrate station: " + json);
-                e.printStackTrace();
-            }
-        }
-        System.out.println("Geo Data Initialization Complete.");
-    }
+    // Route points closer than this to the simplified line are dropped before the corridor search
+    @Value("${station.route.simplify-tolerance-km:0.1}")
+    private double simplifyToleranceKm;
 
     // =======================================================================
-    // 1. GET STATIONS ALONG ROUTE (GeoHash Implementation)
+    // 1. GET STATIONS ALONG ROUTE (simplified corridor over the KD-tree)
     // =======================================================================
     @Override
     public void getStationsAlongRoute(GetStationsAlongRouteRequest request,
                                       StreamObserver<GetStationsAlongRouteResponse> responseObserver) {
 
-        System.out.println("\n====== [GetStationsAlongRoute] START (GeoHash) ======");
+        System.out.println("\n====== [GetStationsAlongRoute] START (corridor) ======");
         long startTime = System.currentTimeMillis();
 
-        List<LatLng> routePoints = request.getRoutePointsList();
-        Set<String> nearbyStationIds = new HashSet<>();
-
-        // Optimization: Don't check every single point if they are very close.
-        // For simplicity, we check all, but Redis is fast.
-        for (LatLng point : routePoints) {
-            Circle circle = new Circle(new Point(point.getLongitude(), point.getLatitude()), new Distance(SEARCH_RADIUS_KM, Metrics.KILOMETERS));
-            
-            GeoResults<RedisGeoCommands.GeoLocation<String>> results = redisTemplate.opsForGeo().radius(REDIS_KEY_GEO, circle);
-
-            if (results != null) {
-                for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : results) {
-                    nearbyStationIds.add(result.getContent().getName());
-                }
-            }
-        }
-
-        List<Station> foundedStations = new ArrayList<>();
-        if (!nearbyStationIds.isEmpty()) {
-            // Bulk fetch details from Hash
-            List<Object> stationsJson = redisTemplate.opsForHash().multiGet(REDIS_KEY_DATA, new ArrayList<Object>(nearbyStationIds));
-            
-            for (Object obj : stationsJson) {
-                if (obj != null) {
-                    try {
-                        String json = (String) obj;
-                        RedisStationDto dto = objectMapper.readValue(json, RedisStationDto.class);
-                        foundedStations.add(mapToProto(dto));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+        StationSnapshot snapshot = snapshots.current();
+        List<LatLng> route = snapshot.simplify(request.getRoutePointsList(), simplifyToleranceKm);
+        String fingerprint = routeCache.fingerprint(route);
+        // Ordered by position along the route
+        List<Station> foundedStations = routeCache.get(snapshot, fingerprint);
+        if (foundedStations == null) {
+            foundedStations = snapshot.alongRoute(route, SEARCH_RADIUS_KM);
+            routeCache.put(snapshot, fingerprint, foundedStations);
+        } else {
+            System.out.println("Route served from cache.");
         }
 
-        System.out.println("Found " + foundedStations.size() + " unique stations via GeoHash.");
+        System.out.println("Route simplified from " + request.getRoutePointsCount() + " to " + route.size() + " points.");
+        System.out.println("Found " + foundedStations.size() + " unique stations in snapshot " + snapshot.version() + ".");
         System.out.println("Execution Time: " + (System.currentTimeMillis() - startTime) + "ms");
 
         // Build Response
@@ -146,7 +77,7 @@ public class StationGrpcService extends StationServiceGrpc.StationServiceImplBas
     }
 
     // =======================================================================
-    // 2. GET STATION INFO (Hash Lookup)
+    // 2. GET STATION INFO (snapshot name index)
     // =======================================================================
     @Override
     public void getStationInfo(GetStationInfoRequest request,
@@ -155,27 +86,17 @@ public class StationGrpcService extends StationServiceGrpc.StationServiceImplBas
         String requestedId = request.getStationId(); 
         System.out.println("\n====== [GetStationInfo] Looking for: " + requestedId + " ======");
 
-        // Direct Hash Lookup O(1)
-        Object jsonObj = redisTemplate.opsForHash().get(REDIS_KEY_DATA, requestedId);
-        
-        // Also try case-insensitive if direct match fails? 
-        // Redis Hash keys are case sensitive. If we want case-insensitive, we'd need another map or scan.
-        // For now, assuming exact match or user provides correct casing as per ID.
+        // Exact ID, then case/punctuation-insensitive name, then closest spelling
+        Station station = snapshots.current().resolve(requestedId, minNameSimilarity);
         
         GetStationInfoResponse.Builder responseBuilder = GetStationInfoResponse.newBuilder();
 
-        if (jsonObj != null) {
-            try {
-                RedisStationDto dto = objectMapper.readValue((String) jsonObj, RedisStationDto.class);
-                System.out.println("Station found: " + dto.name);
-                responseBuilder.setStation(mapToProto(dto))
-                        .setSuccess(true);
-            } catch (Exception e) {
-                System.err.println("Error parsing station json");
-                responseBuilder.setSuccess(false);
-            }
+        if (station != null) {
+            System.out.println("Station found: " + station.getName());
+            responseBuilder.setStation(station)
+                    .setSuccess(true);
         } else {
-            System.out.println("Station NOT found in Cache.");
+            System.out.println("Station NOT found in snapshot.");
             responseBuilder.setSuccess(false);
         }
 
@@ -185,7 +106,7 @@ public class StationGrpcService extends StationServiceGrpc.StationServiceImplBas
     }
 
     // =======================================================================
-    // 3. GET ALL STATIONS (Keys/Hash Scan)
+    // 3. GET ALL STATIONS (prebuilt per snapshot version)
     // =======================================================================
     @Override
     public void getAllStations(GetAllStationsRequest request,
@@ -193,57 +114,63 @@ public class StationGrpcService extends StationServiceGrpc.StationServiceImplBas
         
         System.out.println("\n====== [GetAllStations] Fetching all... ======");
         
-        List<Station> stations = new ArrayList<>();
-        
-        // Fetch values from Hash
-        Map<Object, Object> allEntries = redisTemplate.opsForHash().entries(REDIS_KEY_DATA);
-        
-        for (Object val : allEntries.values()) {
-             try {
-                RedisStationDto dto = objectMapper.readValue((String) val, RedisStationDto.class);
-                stations.add(mapToProto(dto));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        GetAllStationsResponse response = snapshots.current().allStationsResponse(request.getIfVersion());
 
-        System.out.println("Returning " + stations.size() + " stations to client.");
-
-        GetAllStationsResponse response = GetAllStationsResponse.newBuilder()
-                .addAllStations(stations)
-                .setSuccess(true)
-                .build();
+        if (response.getNotModified()) {
+            System.out.println("Client already has version " + response.getVersion() + ".");
+        } else {
+            System.out.println("Returning " + response.getStationsCount() + " stations to client.");
+        }
 
         responseObserver.onNext(response);
         responseObserver.onCompleted();
         System.out.println("====== [GetAllStations] END ======\n");
     }
 
-
     // =======================================================================
-    // HELPER METHODS
+    // 4. SEARCH STATIONS (autocomplete from the snapshot name index)
     // =======================================================================
+    @Override
+    public void searchStations(SearchStationsRequest request,
+                               StreamObserver<SearchStationsResponse> responseObserver) {
+
+        int limit = request.getLimit() > 0 ? Math.min(request.getLimit(), MAX_SEARCH_LIMIT) : DEFAULT_SEARCH_LIMIT;
+        List<Station> stations = snapshots.current().search(request.getQuery(), limit, minNameSimilarity);
 
-    private Station mapToProto(RedisStationDto dto) {
-        return Station.newBuilder()
-                .setStationId(dto.name)
-                .setName(dto.name)
-                .setLatitude(dto.location.lat)
-                .setLongitude(dto.location.lng)
-                .setLine("Namma Metro") 
-                .setOrder(0)
-                .build();
+        responseObserver.onNext(SearchStationsResponse.newBuilder()
+                .addAllStations(stations)
+                .setSuccess(true)
+                .build());
+        responseObserver.onCompleted();
     }
 
-    // Inner class to map the Redis JSON structure
-    private static class RedisStationDto {
-        public String name;
-        public String address;
-        public Location location;
+    // =======================================================================
+    // 5. GET NEIGHBOUR STATIONS (precomputed k-nearest graph)
+    // =======================================================================
+    @Override
+    public void getNeighbourStations(GetNeighbourStationsRequest request,
+                                     StreamObserver<GetNeighbourStationsResponse> responseObserver) {
+
+        StationSnapshot snapshot = snapshots.current();
+        Station station = snapshot.resolve(request.getStationId(), minNameSimilarity);
 
-        public static class Location {
-            public double lat;
-            public double lng;
+        GetNeighbourStationsResponse.Builder responseBuilder = GetNeighbourStationsResponse.newBuilder()
+                .setVersion(snapshot.version());
+        if (station == null) {
+            responseBuilder.setSuccess(false);
+        } else {
+            int limit = request.getLimit() > 0 ? request.getLimit() : StationSnapshot.NEIGHBOUR_COUNT;
+            double maxDistanceKm = request.getMaxDistanceKm() > 0 ? request.getMaxDistanceKm() : Double.MAX_VALUE;
+            responseBuilder.setStation(station).setSuccess(true);
+            for (StationSnapshot.Neighbour neighbour : snapshot.neighbours(station.getStationId())) {
+                if (responseBuilder.getNeighboursCount() >= limit || neighbour.distanceKm() > maxDistanceKm) break;
+                responseBuilder.addNeighbours(NeighbourStation.newBuilder()
+                        .setStation(neighbour.station())
+                        .setDistanceKm(neighbour.distanceKm()));
+            }
         }
+
+        responseObserver.onNext(responseBuilder.build());
+        responseObserver.onCompleted();
     }
 }
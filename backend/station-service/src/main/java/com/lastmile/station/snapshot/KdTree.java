@@ -0,0 +1,144 @@
+package com.lastmile.station.snapshot;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Static 2-D KD-tree over points projected to a local plane in kilometres.
+ *
+ * The tree is implicit: {@code order} holds point indices arranged so that the median of each
+ * range is the splitting node, with its left and right halves as subtrees. Built once per
+ * snapshot and never modified, so it is safe to share between threads.
+ */
+public final class KdTree {
+
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] order;
+
+    public KdTree(double[] xs, double[] ys) {
+        this.xs = xs;
+        this.ys = ys;
+        this.order = new int[xs.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        build(0, order.length, 0);
+    }
+
+    public int size() {
+        return order.length;
+    }
+
+    /**
+     * Calls {@code consumer} with the index of every point within {@code radiusKm} of (x, y).
+     */
+    public void withinRadius(double x, double y, double radiusKm, IntConsumer consumer) {
+        withinRadius(0, order.length, 0, x, y, radiusKm, radiusKm * radiusKm, consumer);
+    }
+
+    /**
+     * Indices of the {@code k} points nearest to (x, y), closest first.
+     */
+    public int[] nearest(double x, double y, int k) {
+        k = Math.min(k, order.length);
+        if (k <= 0) return new int[0];
+        int[] best = new int[k];
+        double[] bestDist = new double[k];
+        Arrays.fill(bestDist, Double.POSITIVE_INFINITY);
+        nearest(0, order.length, 0, x, y, best, bestDist);
+        return best;
+    }
+
+    private void build(int from, int to, int axis) {
+        if (to - from <= 1) return;
+        int mid = (from + to) >>> 1;
+        select(from, to - 1, mid, axis == 0 ? xs : ys);
+        build(from, mid, axis ^ 1);
+        build(mid + 1, to, axis ^ 1);
+    }
+
+    // Quickselect on order[lo..hi] so that order[k] holds the median by the given coordinate
+    private void select(int lo, int hi, int k, double[] coord) {
+        while (lo < hi) {
+            double pivot = coord[order[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coord[order[i]] < pivot) i++;
+                while (coord[order[j]] > pivot) j--;
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void withinRadius(int from, int to, int axis, double x, double y, double radius, double radiusSq,
+                              IntConsumer consumer) {
+        if (from >= to) return;
+        int mid = (from + to) >>> 1;
+        int point = order[mid];
+        double dx = xs[point] - x;
+        double dy = ys[point] - y;
+        if (dx * dx + dy * dy <= radiusSq) {
+            consumer.accept(point);
+        }
+        double delta = axis == 0 ? dx : dy;
+        // delta > 0 means the query lies left of the split
+        if (delta >= -radius) {
+            withinRadius(from, mid, axis ^ 1, x, y, radius, radiusSq, consumer);
+        }
+        if (delta <= radius) {
+            withinRadius(mid + 1, to, axis ^ 1, x, y, radius, radiusSq, consumer);
+        }
+    }
+
+    private void nearest(int from, int to, int axis, double x, double y, int[] best, double[] bestDist) {
+        if (from >= to) return;
+        int mid = (from + to) >>> 1;
+        int point = order[mid];
+        double dx = xs[point] - x;
+        double dy = ys[point] - y;
+        offer(point, dx * dx + dy * dy, best, bestDist);
+
+        double delta = axis == 0 ? dx : dy;
+        boolean queryLeft = delta > 0;
+        if (queryLeft) {
+            nearest(from, mid, axis ^ 1, x, y, best, bestDist);
+        } else {
+            nearest(mid + 1, to, axis ^ 1, x, y, best, bestDist);
+        }
+        if (delta * delta < bestDist[bestDist.length - 1]) {
+            if (queryLeft) {
+                nearest(mid + 1, to, axis ^ 1, x, y, best, bestDist);
+            } else {
+                nearest(from, mid, axis ^ 1, x, y, best, bestDist);
+            }
+        }
+    }
+
+    // Insertion into the small sorted best-k arrays
+    private static void offer(int point, double distSq, int[] best, double[] bestDist) {
+        int i = bestDist.length - 1;
+        if (distSq >= bestDist[i]) return;
+        while (i > 0 && bestDist[i - 1] > distSq) {
+            best[i] = best[i - 1];
+            bestDist[i] = bestDist[i - 1];
+            i--;
+        }
+        best[i] = point;
+        bestDist[i] = distSq;
+    }
+}
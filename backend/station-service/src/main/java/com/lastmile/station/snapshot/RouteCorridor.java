@@ -0,0 +1,78 @@
+package com.lastmile.station.snapshot;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Geometry for corridor queries on projected (kilometre) coordinates: Douglas–Peucker
+ * simplification and point-to-segment distances.
+ */
+final class RouteCorridor {
+
+    private RouteCorridor() {
+    }
+
+    /**
+     * Indices of the points kept by Douglas–Peucker at {@code toleranceKm}, in route order. Every
+     * dropped point lies within the tolerance of the simplified line. Iterative, so long
+     * polylines cannot overflow the stack.
+     */
+    static int[] simplify(double[] xs, double[] ys, double toleranceKm) {
+        int n = xs.length;
+        if (n <= 2) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) all[i] = i;
+            return all;
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{0, n - 1});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int from = range[0];
+            int to = range[1];
+            double maxDist = -1;
+            int farthest = -1;
+            for (int i = from + 1; i < to; i++) {
+                double d = distanceToSegment(xs[i], ys[i], xs[from], ys[from], xs[to], ys[to]);
+                if (d > maxDist) {
+                    maxDist = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDist > toleranceKm) {
+                keep[farthest] = true;
+                ranges.push(new int[]{from, farthest});
+                ranges.push(new int[]{farthest, to});
+            }
+        }
+
+        int[] kept = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) kept[count++] = i;
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    static double distanceToSegment(double px, double py, double ax, double ay, double bx, double by) {
+        double t = projection(px, py, ax, ay, bx, by);
+        double cx = ax + t * (bx - ax);
+        double cy = ay + t * (by - ay);
+        return Math.hypot(px - cx, py - cy);
+    }
+
+    /** Position of the closest point on segment A-B to P, as a fraction of A-B clamped to [0, 1]. */
+    static double projection(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSq = dx * dx + dy * dy;
+        if (lengthSq == 0) return 0;
+        double t = ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+        return Math.max(0, Math.min(1, t));
+    }
+}
@@ -0,0 +1,160 @@
+package com.lastmile.station.snapshot;
+
+import com.lastmile.station.proto.Station;
+
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Name lookups for one snapshot: normalised exact match, word-prefix search for autocomplete and
+ * trigram similarity for misspellings.
+ *
+ * Normalising folds case and accents, turns punctuation into spaces and drops the generic
+ * "metro"/"station" words, so "Indiranagar", "indira-nagar metro" and "Indiranagar Metro
+ * Station" compare on the same key where possible.
+ */
+final class StationNameIndex {
+
+    private static final Set<String> GENERIC_WORDS = Set.of("metro", "station", "stn");
+
+    private final List<Station> stations;
+    private final String[] normalised;
+    private final Map<String, Integer> byNormalised = new HashMap<>();
+
+    // Every word-start suffix of every normalised name, sorted, for prefix search
+    private final String[] suffixes;
+    private final int[] suffixStation;
+
+    private final Map<String, int[]> trigramPostings = new HashMap<>();
+    private final int[] trigramCounts;
+
+    StationNameIndex(List<Station> stations) {
+        this.stations = stations;
+        this.normalised = new String[stations.size()];
+        this.trigramCounts = new int[stations.size()];
+
+        List<Map.Entry<String, Integer>> starts = new ArrayList<>();
+        Map<String, List<Integer>> postings = new HashMap<>();
+        for (int i = 0; i < stations.size(); i++) {
+            String key = normalise(stations.get(i).getName());
+            normalised[i] = key;
+            byNormalised.putIfAbsent(key, i);
+
+            for (int pos = 0; pos < key.length(); pos++) {
+                if (pos == 0 || key.charAt(pos - 1) == ' ') {
+                    starts.add(Map.entry(key.substring(pos), i));
+                }
+            }
+
+            Set<String> grams = trigrams(key);
+            trigramCounts[i] = grams.size();
+            for (String gram : grams) {
+                postings.computeIfAbsent(gram, g -> new ArrayList<>()).add(i);
+            }
+        }
+
+        starts.sort(Map.Entry.comparingByKey());
+        this.suffixes = new String[starts.size()];
+        this.suffixStation = new int[starts.size()];
+        for (int i = 0; i < starts.size(); i++) {
+            suffixes[i] = starts.get(i).getKey();
+            suffixStation[i] = starts.get(i).getValue();
+        }
+        postings.forEach((gram, ids) -> trigramPostings.put(gram, ids.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    static String normalise(String name) {
+        if (name == null) return "";
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFKD)
+                .replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("[^a-z0-9]+", " ")
+                .trim();
+        if (folded.isEmpty()) return folded;
+
+        StringBuilder kept = new StringBuilder(folded.length());
+        for (String word : folded.split(" ")) {
+            if (!GENERIC_WORDS.contains(word)) {
+                if (kept.length() > 0) kept.append(' ');
+                kept.append(word);
+            }
+        }
+        // A name made only of generic words keeps them
+        return kept.length() > 0 ? kept.toString() : folded;
+    }
+
+    /** Station whose normalised name equals the query's, or null. */
+    Station exact(String query) {
+        Integer i = byNormalised.get(normalise(query));
+        return i != null ? stations.get(i) : null;
+    }
+
+    /**
+     * Stations with a word starting with the query, names that start with it first, then alphabetically.
+     */
+    List<Station> prefix(String query, int limit) {
+        String key = normalise(query);
+        if (key.isEmpty() || limit <= 0) return List.of();
+
+        int from = Arrays.binarySearch(suffixes, key);
+        if (from < 0) from = -from - 1;
+        Set<Integer> leading = new LinkedHashSet<>();
+        Set<Integer> inner = new LinkedHashSet<>();
+        for (int i = from; i < suffixes.length && suffixes[i].startsWith(key); i++) {
+            int station = suffixStation[i];
+            (normalised[station].startsWith(key) ? leading : inner).add(station);
+        }
+        inner.removeAll(leading);
+
+        List<Station> found = new ArrayList<>();
+        for (Set<Integer> group : List.of(leading, inner)) {
+            group.stream()
+                    .sorted(Comparator.comparing(s -> normalised[s]))
+                    .limit(limit - found.size())
+                    .forEach(s -> found.add(stations.get(s)));
+        }
+        return found;
+    }
+
+    /**
+     * Stations ranked by trigram similarity (Dice coefficient) to the query, best first, keeping
+     * only those scoring at least {@code minScore}.
+     */
+    List<Station> fuzzy(String query, int limit, double minScore) {
+        Set<String> grams = trigrams(normalise(query));
+        if (grams.isEmpty() || limit <= 0) return List.of();
+
+        int[] shared = new int[stations.size()];
+        for (String gram : grams) {
+            int[] ids = trigramPostings.get(gram);
+            if (ids == null) continue;
+            for (int id : ids) shared[id]++;
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        double[] score = new double[stations.size()];
+        for (int i = 0; i < shared.length; i++) {
+            if (shared[i] == 0) continue;
+            score[i] = 2.0 * shared[i] / (grams.size() + trigramCounts[i]);
+            if (score[i] >= minScore) candidates.add(i);
+        }
+        candidates.sort((a, b) -> Double.compare(score[b], score[a]));
+
+        List<Station> found = new ArrayList<>();
+        for (int i = 0; i < candidates.size() && found.size() < limit; i++) {
+            found.add(stations.get(candidates.get(i)));
+        }
+        return found;
+    }
+
+    // Padded so short names and word boundaries still produce grams
+    private static Set<String> trigrams(String key) {
+        if (key.isEmpty()) return Set.of();
+        String padded = "  " + key + " ";
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,257 @@
+package com.lastmile.station.snapshot;
+
+import com.lastmile.station.proto.GetAllStationsResponse;
+import com.lastmile.station.proto.LatLng;
+import com.lastmile.station.proto.Station;
+
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable view of the station set: parsed protos, a name index, a KD-tree for radius
+ * searches and each station's nearest neighbours. A new snapshot is built whenever the stations change and swapped in whole, so
+ * readers never see a half-updated set.
+ *
+ * Coordinates are projected onto a flat plane in kilometres around the snapshot's mean latitude.
+ * Across a single city the error is a few metres, well inside the search radii used here.
+ */
+public final class StationSnapshot {
+
+    private static final double KM_PER_DEGREE_LAT = 110.574;
+    private static final double KM_PER_DEGREE_LNG_AT_EQUATOR = 111.320;
+
+    // Neighbours precomputed per station for GetNeighbourStations
+    public static final int NEIGHBOUR_COUNT = 8;
+
+    private final String version;
+    private final List<Station> stations;
+    private final Map<String, Station> byName;
+    private final double kmPerDegreeLng;
+    private final double[] xs;
+    private final double[] ys;
+    private final KdTree tree;
+    private final GetAllStationsResponse allStations;
+    private final GetAllStationsResponse notModified;
+    private final StationNameIndex nameIndex;
+    private final Map<String, List<Neighbour>> neighbours;
+
+    public record Neighbour(Station station, double distanceKm) {}
+
+    private StationSnapshot(List<Station> stations) {
+        List<Station> sorted = new ArrayList<>(stations);
+        sorted.sort(Comparator.comparing(Station::getName));
+        this.stations = Collections.unmodifiableList(sorted);
+
+        Map<String, Station> names = new HashMap<>();
+        for (Station station : sorted) {
+            names.put(station.getStationId(), station);
+        }
+        this.byName = Collections.unmodifiableMap(names);
+
+        double meanLat = sorted.stream().mapToDouble(Station::getLatitude).average().orElse(0);
+        this.kmPerDegreeLng = KM_PER_DEGREE_LNG_AT_EQUATOR * Math.cos(Math.toRadians(meanLat));
+        this.xs = new double[sorted.size()];
+        this.ys = new double[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            xs[i] = x(sorted.get(i).getLongitude());
+            ys[i] = y(sorted.get(i).getLatitude());
+        }
+        this.tree = new KdTree(xs, ys);
+        this.nameIndex = new StationNameIndex(this.stations);
+
+        Map<String, List<Neighbour>> graph = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            // One extra, since the nearest point to a station is itself
+            int[] nearest = tree.nearest(xs[i], ys[i], NEIGHBOUR_COUNT + 1);
+            List<Neighbour> list = new ArrayList<>(NEIGHBOUR_COUNT);
+            for (int j : nearest) {
+                if (j == i) continue;
+                if (list.size() == NEIGHBOUR_COUNT) break;
+                list.add(new Neighbour(sorted.get(j), Math.hypot(xs[j] - xs[i], ys[j] - ys[i])));
+            }
+            graph.put(sorted.get(i).getStationId(), List.copyOf(list));
+        }
+        this.neighbours = Collections.unmodifiableMap(graph);
+        this.version = contentVersion(sorted);
+
+        // Built once per snapshot; GetAllStations hands out the same instances every call
+        this.allStations = GetAllStationsResponse.newBuilder()
+                .addAllStations(sorted)
+                .setSuccess(true)
+                .setVersion(version)
+                .build();
+        this.allStations.getSerializedSize(); // memoised, so encoding skips the size pass
+        this.notModified = GetAllStationsResponse.newBuilder()
+                .setSuccess(true)
+                .setVersion(version)
+                .setNotModified(true)
+                .build();
+    }
+
+    public static StationSnapshot of(Collection<Station> stations) {
+        return new StationSnapshot(new ArrayList<>(stations));
+    }
+
+    public static StationSnapshot empty() {
+        return new StationSnapshot(List.of());
+    }
+
+    /** Changes whenever any station is added, removed, renamed or moved. */
+    public String version() {
+        return version;
+    }
+
+    /** All stations, ordered by name. */
+    public List<Station> stations() {
+        return stations;
+    }
+
+    /**
+     * The full GetAllStations reply, or a not-modified reply when the caller already holds
+     * this version.
+     */
+    public GetAllStationsResponse allStationsResponse(String ifVersion) {
+        return version.equals(ifVersion) ? notModified : allStations;
+    }
+
+    public Station get(String stationId) {
+        return byName.get(stationId);
+    }
+
+    /**
+     * Resolves a name as typed by a user: exact ID first, then the normalised name, then the
+     * closest trigram match scoring at least {@code minSimilarity}. Null if nothing is close.
+     */
+    public Station resolve(String name, double minSimilarity) {
+        Station station = byName.get(name);
+        if (station == null) {
+            station = nameIndex.exact(name);
+        }
+        if (station == null) {
+            List<Station> closest = nameIndex.fuzzy(name, 1, minSimilarity);
+            station = closest.isEmpty() ? null : closest.get(0);
+        }
+        return station;
+    }
+
+    /**
+     * Autocomplete: stations with a word starting with the query, topped up with fuzzy matches
+     * when there are fewer than {@code limit}.
+     */
+    public List<Station> search(String query, int limit, double minSimilarity) {
+        List<Station> found = new ArrayList<>(nameIndex.prefix(query, limit));
+        if (found.size() < limit) {
+            for (Station station : nameIndex.fuzzy(query, limit, minSimilarity)) {
+                if (found.size() >= limit) break;
+                if (!found.contains(station)) found.add(station);
+            }
+        }
+        return found;
+    }
+
+    /** Up to {@link #NEIGHBOUR_COUNT} nearest other stations, nearest first. */
+    public List<Neighbour> neighbours(String stationId) {
+        return neighbours.getOrDefault(stationId, List.of());
+    }
+
+    public boolean isEmpty() {
+        return stations.isEmpty();
+    }
+
+    /** Stations within {@code radiusKm} of the point, in no particular order. */
+    public List<Station> withinRadius(LatLng point, double radiusKm) {
+        List<Station> found = new ArrayList<>();
+        tree.withinRadius(x(point.getLongitude()), y(point.getLatitude()), radiusKm, i -> found.add(stations.get(i)));
+        return found;
+    }
+
+    /**
+     * Douglas–Peucker simplification of a route polyline. Every dropped point is within
+     * {@code toleranceKm} of the returned line.
+     */
+    public List<LatLng> simplify(List<LatLng> route, double toleranceKm) {
+        double[] rx = new double[route.size()];
+        double[] ry = new double[route.size()];
+        for (int i = 0; i < route.size(); i++) {
+            rx[i] = x(route.get(i).getLongitude());
+            ry[i] = y(route.get(i).getLatitude());
+        }
+        int[] kept = RouteCorridor.simplify(rx, ry, toleranceKm);
+        List<LatLng> simplified = new ArrayList<>(kept.length);
+        for (int i : kept) {
+            simplified.add(route.get(i));
+        }
+        return simplified;
+    }
+
+    /**
+     * Stations within {@code radiusKm} of any segment of the route, ordered by where along the
+     * route they are closest to it. One KD-tree search per segment, bounded by a circle around
+     * the segment's midpoint, then an exact point-to-segment check.
+     */
+    public List<Station> alongRoute(List<LatLng> route, double radiusKm) {
+        if (route.isEmpty() || stations.isEmpty()) return List.of();
+
+        int n = route.size();
+        double[] rx = new double[n];
+        double[] ry = new double[n];
+        for (int i = 0; i < n; i++) {
+            rx[i] = x(route.get(i).getLongitude());
+            ry[i] = y(route.get(i).getLatitude());
+        }
+
+        // Per station: distance to the route and position along it (km from the start)
+        double[] bestDist = new double[stations.size()];
+        double[] position = new double[stations.size()];
+        Arrays.fill(bestDist, Double.POSITIVE_INFINITY);
+
+        double travelled = 0;
+        int segments = Math.max(1, n - 1);
+        for (int s = 0; s < segments; s++) {
+            double ax = rx[s];
+            double ay = ry[s];
+            double bx = rx[Math.min(s + 1, n - 1)];
+            double by = ry[Math.min(s + 1, n - 1)];
+            double length = Math.hypot(bx - ax, by - ay);
+            double start = travelled;
+
+            tree.withinRadius((ax + bx) / 2, (ay + by) / 2, length / 2 + radiusKm, i -> {
+                double t = RouteCorridor.projection(xs[i], ys[i], ax, ay, bx, by);
+                double d = Math.hypot(xs[i] - (ax + t * (bx - ax)), ys[i] - (ay + t * (by - ay)));
+                if (d <= radiusKm && d < bestDist[i]) {
+                    bestDist[i] = d;
+                    position[i] = start + t * length;
+                }
+            });
+            travelled += length;
+        }
+
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < bestDist.length; i++) {
+            if (bestDist[i] <= radiusKm) found.add(i);
+        }
+        found.sort(Comparator.comparingDouble(i -> position[i]));
+        List<Station> ordered = new ArrayList<>(found.size());
+        for (int i : found) {
+            ordered.add(stations.get(i));
+        }
+        return ordered;
+    }
+
+    double x(double longitude) {
+        return longitude * kmPerDegreeLng;
+    }
+
+    double y(double latitude) {
+        return latitude * KM_PER_DEGREE_LAT;
+    }
+
+    // CRC of the fields clients see, in name order
+    private static String contentVersion(List<Station> sorted) {
+        CRC32 crc = new CRC32();
+        for (Station station : sorted) {
+            crc.update(station.toByteArray());
+        }
+        return sorted.size() + "-" + Long.toHexString(crc.getValue());
+    }
+}
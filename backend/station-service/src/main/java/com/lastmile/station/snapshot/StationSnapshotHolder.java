@@ -0,0 +1,138 @@
+package com.lastmile.station.snapshot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lastmile.station.proto.Station;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link StationSnapshot}. Read RPCs only ever touch the snapshot; Redis is read
+ * once per refresh, with a single HGETALL of the station hash.
+ *
+ * A refresh is triggered by a message on {@link #REFRESH_CHANNEL}, published by whoever rewrites
+ * the station data (see StationImporter). In case a message is missed, {@link #VERSION_KEY} is
+ * also compared with the snapshot's version periodically. A failed refresh keeps serving the
+ * previous snapshot.
+ */
+@Component
+public class StationSnapshotHolder {
+
+    public static final String REFRESH_CHANNEL = "stations-refresh";
+    public static final String VERSION_KEY = "stations:version";
+    private static final String REDIS_KEY_DATA = "stations:data";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${station.snapshot.version-check-ms:30000}")
+    private long versionCheckMs;
+
+    private final AtomicReference<StationSnapshot> current = new AtomicReference<>(StationSnapshot.empty());
+
+    private final ScheduledExecutorService versionCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "station-snapshot-version-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> refresh(),
+                new ChannelTopic(REFRESH_CHANNEL));
+        refresh();
+        versionCheck.scheduleWithFixedDelay(this::checkVersion, versionCheckMs, versionCheckMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        versionCheck.shutdownNow();
+    }
+
+    public StationSnapshot current() {
+        return current.get();
+    }
+
+    /**
+     * Rebuilds the snapshot from Redis and swaps it in. Synchronized so overlapping signals do not
+     * race to install an older read.
+     */
+    public synchronized void refresh() {
+        try {
+            Map<Object, Object> entries = redisTemplate.opsForHash().entries(REDIS_KEY_DATA);
+            List<Station> stations = new ArrayList<>(entries.size());
+            for (Object json : entries.values()) {
+                try {
+                    stations.add(parseStation((String) json));
+                } catch (Exception e) {
+                    System.err.println("Skipping unreadable station: " + json);
+                }
+            }
+            StationSnapshot snapshot = StationSnapshot.of(stations);
+            StationSnapshot previous = current.getAndSet(snapshot);
+            if (!snapshot.version().equals(previous.version())) {
+                System.out.println("Station snapshot " + snapshot.version() + " loaded (" + stations.size() + " stations)");
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to refresh station snapshot, keeping " + current.get().version() + ": " + e.getMessage());
+        }
+    }
+
+    // Catches up if a refresh message was missed, e.g. while the Redis connection was re-established
+    private void checkVersion() {
+        try {
+            String live = redisTemplate.opsForValue().get(VERSION_KEY);
+            if (live != null && !live.equals(current.get().version())) {
+                System.out.println("Station snapshot " + current.get().version() + " is behind " + live + "; refreshing");
+                refresh();
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to check station version: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses one entry of the station hash, as written by seed.py.
+     */
+    public static Station parseStation(String json) throws Exception {
+        RedisStationDto dto = OBJECT_MAPPER.readValue(json, RedisStationDto.class);
+        return Station.newBuilder()
+                .setStationId(dto.name)
+                .setName(dto.name)
+                .setLatitude(dto.location.lat)
+                .setLongitude(dto.location.lng)
+                .setLine("Namma Metro")
+                .setOrder(0)
+                .build();
+    }
+
+    // Inner class to map the Redis JSON structure
+    private static class RedisStationDto {
+        public String name;
+        public String address;
+        public Location location;
+
+        public static class Location {
+            public double lat;
+            public double lng;
+        }
+    }
+}
@@ -1,2 +0,0 @@
--- This will be loaded via a data initialization component
-
@@ -0,0 +1,87 @@
+package com.lastmile.station.config;
+
+import com.lastmile.station.snapshot.StationSnapshotHolder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.core.*;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class StationImporterTest {
+
+    private static final String STATION_JSON = "{\"name\":\"Station A\", \"location\":{\"lat\":12.9, \"lng\":77.5}}";
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    @Mock
+    private ListOperations<String, String> listOperations;
+
+    @Mock
+    private ValueOperations<String, String> valueOperations;
+
+    @Mock
+    private StationSnapshotHolder snapshots;
+
+    @InjectMocks
+    private StationImporter importer;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(redisTemplate.opsForList()).thenReturn(listOperations);
+        lenient().when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        lenient().when(listOperations.range("bangalore_metro_stations", 0, -1)).thenReturn(List.of(STATION_JSON));
+    }
+
+    @Test
+    void testImport_SwapsStagedKeysUnderLock() {
+        when(valueOperations.setIfAbsent(eq("stations:import:lock"), anyString(), any(Duration.class))).thenReturn(true);
+
+        assertTrue(importer.importStations());
+
+        verify(redisTemplate).executePipelined(any(RedisCallback.class));
+        verify(redisTemplate).execute(any(SessionCallback.class));
+        verify(redisTemplate).execute(any(RedisScript.class), eq(List.of("stations:import:lock")), anyString());
+        verify(snapshots).refresh();
+        verify(redisTemplate).convertAndSend(eq(StationSnapshotHolder.REFRESH_CHANNEL), anyString());
+    }
+
+    @Test
+    void testImport_SkipsWhenLockHeldElsewhere() {
+        when(valueOperations.setIfAbsent(eq("stations:import:lock"), anyString(), any(Duration.class))).thenReturn(false);
+
+        assertFalse(importer.importStations());
+
+        verify(redisTemplate, never()).executePipelined(any(RedisCallback.class));
+        verify(snapshots, never()).refresh();
+    }
+
+    @Test
+    void testImport_SkipsWhenVersionAlreadyLive() {
+        when(valueOperations.setIfAbsent(eq("stations:import:lock"), anyString(), any(Duration.class))).thenReturn(true);
+        assertTrue(importer.importStations());
+
+        // Same content again: the live version marker matches, so nothing is locked or written
+        ArgumentCaptor<String> version = ArgumentCaptor.forClass(String.class);
+        verify(redisTemplate).convertAndSend(eq(StationSnapshotHolder.REFRESH_CHANNEL), version.capture());
+        when(valueOperations.get("stations:version")).thenReturn(version.getValue());
+        clearInvocations(redisTemplate, valueOperations);
+
+        assertFalse(importer.importStations());
+
+        verify(valueOperations, never()).setIfAbsent(anyString(), anyString(), any(Duration.class));
+        verify(redisTemplate, never()).executePipelined(any(RedisCallback.class));
+    }
+}
@@ -1,6 +1,9 @@
 package com.lastmile.station.grpc;
 
+import com.lastmile.station.cache.RouteStationsCache;
 import com.lastmile.station.proto.*;
+import com.lastmile.station.snapshot.StationSnapshot;
+import com.lastmile.station.snapshot.StationSnapshotHolder;
 import io.grpc.internal.testing.StreamRecorder;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -8,9 +11,6 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.data.geo.*;
-import org.springframework.data.redis.connection.RedisGeoCommands;
-import org.springframework.data.redis.core.*;
 
 import java.util.*;
 
@@ -22,44 +22,35 @@ import static org.mockito.Mockito.*;
 public class StationGrpcServiceTest {
 
     @Mock
-    private StringRedisTemplate redisTemplate;
+    private StationSnapshotHolder snapshots;
 
     @Mock
-    private GeoOperations<String, String> geoOperations;
-
-    @Mock
-    private HashOperations<String, Object, Object> hashOperations;
-
-    @Mock
-    private ListOperations<String, String> listOperations;
-
-    @Mock
-    private ZSetOperations<String, String> zSetOperations;
+    private RouteStationsCache routeCache;
 
     @InjectMocks
     private StationGrpcService stationService;
 
     @BeforeEach
     void setUp() {
-        lenient().when(redisTemplate.opsForGeo()).thenReturn(geoOperations);
-        lenient().when(redisTemplate.opsForHash()).thenReturn(hashOperations);
-        lenient().when(redisTemplate.opsForList()).thenReturn(listOperations);
-        lenient().when(redisTemplate.opsForZSet()).thenReturn(zSetOperations);
+        lenient().when(snapshots.current()).thenReturn(StationSnapshot.of(List.of(
+                station("Station A", 12.9, 77.5),
+                station("Station B", 13.0, 77.6))));
+        lenient().when(routeCache.get(any(), any())).thenReturn(null);
     }
 
-    @Test
-    void testGetStationsAlongRoute_GeoHash_Success() {
-        // Mock Geo Search Results
-        GeoResults<RedisGeoCommands.GeoLocation<String>> mockGeoResults = new GeoResults<>(
-                Collections.singletonList(new GeoResult<>(new RedisGeoCommands.GeoLocation<>("Station A", new Point(77.5, 12.9)), new Distance(1.0)))
-        );
-        when(geoOperations.radius(anyString(), any(Circle.class))).thenReturn(mockGeoResults);
-
-        // Mock Hash Get
-        String stationJson = "{\"name\":\"Station A\", \"location\":{\"lat\":12.9, \"lng\":77.5}}";
-        when(hashOperations.multiGet(anyString(), anyCollection())).thenReturn(Collections.singletonList(stationJson));
+    private static Station station(String name, double lat, double lng) {
+        return Station.newBuilder()
+                .setStationId(name)
+                .setName(name)
+                .setLatitude(lat)
+                .setLongitude(lng)
+                .setLine("Namma Metro")
+                .build();
+    }
 
-        // Prepare Request
+    @Test
+    void testGetStationsAlongRoute_Snapshot_Success() {
+        // Station A is ~1.5km away, Station B ~14km away
         GetStationsAlongRouteRequest request = GetStationsAlongRouteRequest.newBuilder()
                 .addRoutePoints(LatLng.newBuilder().setLatitude(12.91).setLongitude(77.51).build())
                 .build();
@@ -78,11 +69,61 @@ public class StationGrpcServiceTest {
     }
 
     @Test
-    void testGetStationInfo_Found() {
-        // Mock Hash Get
-        String stationJson = "{\"name\":\"Station B\", \"location\":{\"lat\":13.0, \"lng\":77.6}}";
-        when(hashOperations.get(anyString(), eq("Station B"))).thenReturn(stationJson);
+    void testGetStationsAlongRoute_OrderedAlongRoute() {
+        // Dense straight polyline from B towards A; simplification keeps only the end points
+        GetStationsAlongRouteRequest.Builder request = GetStationsAlongRouteRequest.newBuilder();
+        for (int i = 0; i <= 100; i++) {
+            double f = i / 100.0;
+            request.addRoutePoints(LatLng.newBuilder()
+                    .setLatitude(13.01 - f * 0.12)
+                    .setLongitude(77.61 - f * 0.12)
+                    .build());
+        }
+        StreamRecorder<GetStationsAlongRouteResponse> responseObserver = StreamRecorder.create();
+
+        stationService.getStationsAlongRoute(request.build(), responseObserver);
+
+        GetStationsAlongRouteResponse response = responseObserver.getValues().get(0);
+        assertTrue(response.getSuccess());
+        assertEquals(2, response.getStationsCount());
+        assertEquals("Station B", response.getStations(0).getName());
+        assertEquals("Station A", response.getStations(1).getName());
+    }
+
+    @Test
+    void testGetStationsAlongRoute_CacheHit() {
+        when(routeCache.fingerprint(anyList())).thenReturn("tdr1v9q");
+        when(routeCache.get(any(StationSnapshot.class), eq("tdr1v9q")))
+                .thenReturn(List.of(station("Station B", 13.0, 77.6)));
+
+        GetStationsAlongRouteRequest request = GetStationsAlongRouteRequest.newBuilder()
+                .addRoutePoints(LatLng.newBuilder().setLatitude(12.91).setLongitude(77.51).build())
+                .build();
+        StreamRecorder<GetStationsAlongRouteResponse> responseObserver = StreamRecorder.create();
+
+        stationService.getStationsAlongRoute(request, responseObserver);
+
+        GetStationsAlongRouteResponse response = responseObserver.getValues().get(0);
+        assertEquals(1, response.getStationsCount());
+        assertEquals("Station B", response.getStations(0).getName());
+        verify(routeCache, never()).put(any(), any(), any());
+    }
+
+    @Test
+    void testGetStationsAlongRoute_NoneInRange() {
+        GetStationsAlongRouteRequest request = GetStationsAlongRouteRequest.newBuilder()
+                .addRoutePoints(LatLng.newBuilder().setLatitude(12.5).setLongitude(77.0).build())
+                .build();
+        StreamRecorder<GetStationsAlongRouteResponse> responseObserver = StreamRecorder.create();
+
+        stationService.getStationsAlongRoute(request, responseObserver);
 
+        assertFalse(responseObserver.getValues().get(0).getSuccess());
+        assertEquals(0, responseObserver.getValues().get(0).getStationsCount());
+    }
+
+    @Test
+    void testGetStationInfo_Found() {
         // Prepare Request
         GetStationInfoRequest request = GetStationInfoRequest.newBuilder()
                 .setStationId("Station B")
@@ -101,19 +142,76 @@ public class StationGrpcServiceTest {
     }
 
     @Test
-    void testInitGeoData_Migration() {
-        // Mock Missing Geo Data
-        when(zSetOperations.size(anyString())).thenReturn(0L);
+    void testGetStationInfo_NormalisedAndFuzzy() {
+        when(snapshots.current()).thenReturn(StationSnapshot.of(List.of(
+                station("Indiranagar Metro Station", 12.978, 77.638),
+                station("MG Road", 12.975, 77.606))));
+
+        for (String typed : List.of("indiranagar", "Indira-nagar metro", "Indranagar")) {
+            StreamRecorder<GetStationInfoResponse> responseObserver = StreamRecorder.create();
+            stationService.getStationInfo(GetStationInfoRequest.newBuilder().setStationId(typed).build(), responseObserver);
+
+            GetStationInfoResponse response = responseObserver.getValues().get(0);
+            assertTrue(response.getSuccess(), typed);
+            assertEquals("Indiranagar Metro Station", response.getStation().getStationId(), typed);
+        }
+    }
 
-        // Mock Existing List Data
-        String stationJson = "{\"name\":\"Station Migrated\", \"location\":{\"lat\":12.0, \"lng\":77.0}}";
-        when(listOperations.range(anyString(), eq(0L), eq(-1L))).thenReturn(Collections.singletonList(stationJson));
+    @Test
+    void testSearchStations_Prefix() {
+        when(snapshots.current()).thenReturn(StationSnapshot.of(List.of(
+                station("Indiranagar Metro Station", 12.978, 77.638),
+                station("MG Road", 12.975, 77.606),
+                station("Magadi Road", 12.975, 77.555))));
+
+        StreamRecorder<SearchStationsResponse> responseObserver = StreamRecorder.create();
+        stationService.searchStations(SearchStationsRequest.newBuilder().setQuery("ro").build(), responseObserver);
+
+        SearchStationsResponse response = responseObserver.getValues().get(0);
+        assertTrue(response.getSuccess());
+        assertEquals(List.of("Magadi Road", "MG Road"),
+                response.getStationsList().stream().map(Station::getName).toList());
+    }
 
-        // Execute
-        stationService.initGeoData();
+    @Test
+    void testGetNeighbourStations_NearestFirst() {
+        when(snapshots.current()).thenReturn(StationSnapshot.of(List.of(
+                station("Indiranagar Metro Station", 12.978, 77.638),
+                station("Halasuru", 12.976, 77.626),
+                station("MG Road", 12.975, 77.606),
+                station("Majestic", 12.976, 77.572))));
+
+        StreamRecorder<GetNeighbourStationsResponse> responseObserver = StreamRecorder.create();
+        stationService.getNeighbourStations(GetNeighbourStationsRequest.newBuilder()
+                .setStationId("Indiranagar")
+                .setMaxDistanceKm(5.0)
+                .build(), responseObserver);
+
+        GetNeighbourStationsResponse response = responseObserver.getValues().get(0);
+        assertTrue(response.getSuccess());
+        assertEquals("Indiranagar Metro Station", response.getStation().getStationId());
+        assertEquals(List.of("Halasuru", "MG Road"),
+                response.getNeighboursList().stream().map(n -> n.getStation().getName()).toList());
+        assertTrue(response.getNeighbours(0).getDistanceKm() < response.getNeighbours(1).getDistanceKm());
+    }
 
-        // Verify Geo Add and Hash Put called
-        verify(geoOperations).add(eq("stations:geo"), any(Point.class), eq("Station Migrated"));
-        verify(hashOperations).put(eq("stations:data"), eq("Station Migrated"), eq(stationJson));
+    @Test
+    void testGetAllStations_NotModified() {
+        StreamRecorder<GetAllStationsResponse> first = StreamRecorder.create();
+        stationService.getAllStations(GetAllStationsRequest.getDefaultInstance(), first);
+
+        GetAllStationsResponse full = first.getValues().get(0);
+        assertEquals(2, full.getStationsCount());
+        assertFalse(full.getNotModified());
+        assertFalse(full.getVersion().isEmpty());
+
+        StreamRecorder<GetAllStationsResponse> second = StreamRecorder.create();
+        stationService.getAllStations(GetAllStationsRequest.newBuilder().setIfVersion(full.getVersion()).build(), second);
+
+        GetAllStationsResponse conditional = second.getValues().get(0);
+        assertTrue(conditional.getSuccess());
+        assertTrue(conditional.getNotModified());
+        assertEquals(0, conditional.getStationsCount());
+        assertEquals(full.getVersion(), conditional.getVersion());
     }
 }
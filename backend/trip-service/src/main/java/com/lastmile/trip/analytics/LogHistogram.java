@@ -0,0 +1,148 @@
+package com.lastmile.trip.analytics;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Log-linear histogram of non-negative longs, in the style of HdrHistogram: every power of two
+ * is split into 8 equal sub-buckets, so any recorded value is known to within 12.5%.
+ * Histograms with the same layout merge by adding bucket counts, which is what lets per-pod,
+ * per-hour histograms be combined into any station or time range.
+ *
+ * Not thread-safe; callers synchronize.
+ */
+public class LogHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Grown on demand to the highest bucket used, so small values cost little memory
+    private long[] counts = new long[0];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long value) {
+        if (value < 0) return;
+        int index = bucketIndex(value);
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, index + 1);
+        }
+        counts[index]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(LogHistogram other) {
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public LogHistogram copy() {
+        LogHistogram copy = new LogHistogram();
+        copy.merge(this);
+        return copy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Value at the given percentile (0-100), reported as the middle of its bucket and clamped to the observed range.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long lower = bucketLowerBound(i);
+                long mid = lower + (bucketWidth(i) - 1) / 2;
+                return Math.max(min, Math.min(max, mid));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Compact form for snapshots: only non-empty buckets, as parallel index/count lists.
+     */
+    public Document toDocument() {
+        List<Integer> indexes = new ArrayList<>();
+        List<Long> bucketCounts = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                indexes.add(i);
+                bucketCounts.add(counts[i]);
+            }
+        }
+        return new Document("b", indexes)
+                .append("c", bucketCounts)
+                .append("n", count)
+                .append("sum", sum)
+                .append("min", min)
+                .append("max", max);
+    }
+
+    public static LogHistogram fromDocument(Document doc) {
+        LogHistogram histogram = new LogHistogram();
+        if (doc == null) return histogram;
+        List<Integer> indexes = doc.getList("b", Integer.class, List.of());
+        List<Long> bucketCounts = doc.getList("c", Long.class, List.of());
+        if (!indexes.isEmpty()) {
+            histogram.counts = new long[indexes.get(indexes.size() - 1) + 1];
+            for (int i = 0; i < indexes.size(); i++) {
+                histogram.counts[indexes.get(i)] = bucketCounts.get(i);
+            }
+        }
+        histogram.count = doc.get("n", 0L);
+        histogram.sum = doc.get("sum", 0L);
+        histogram.min = doc.get("min", Long.MAX_VALUE);
+        histogram.max = doc.get("max", 0L);
+        return histogram;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long bucketWidth(int index) {
+        if (index < SUB_BUCKETS) return 1;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return 1L << (exponent - SUB_BUCKET_BITS);
+    }
+}
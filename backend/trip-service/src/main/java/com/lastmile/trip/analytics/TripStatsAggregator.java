@@ -0,0 +1,267 @@
+package com.lastmile.trip.analytics;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental per-station, per-hour trip statistics fed by trip lifecycle events.
+ *
+ * Each pod aggregates the events it handles in memory and periodically writes its buckets
+ * as compact snapshots (one document per pod, station and hour). Queries merge the
+ * snapshots of all pods, with this pod's live buckets taking the place of its own snapshots.
+ */
+@Component
+public class TripStatsAggregator {
+
+    private static final String SNAPSHOT_COLLECTION = "trip_stats_snapshots";
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // Hours kept in memory; older buckets are only in snapshots
+    @Value("${trip.stats.live-hours:24}")
+    private int liveHours;
+
+    @Value("${trip.stats.snapshot-retention-days:30}")
+    private int snapshotRetentionDays;
+
+    private final String podId = UUID.randomUUID().toString();
+
+    private final Map<BucketKey, StationHour> buckets = new ConcurrentHashMap<>();
+
+    public record BucketKey(String station, long hourStart) {}
+
+    /**
+     * Counters and histograms for one station and hour. Guarded by its own monitor.
+     */
+    public static class StationHour {
+        long tripsCreated;
+        long pickups;
+        long completions;
+        final LogHistogram pickupWaitMs;
+        final LogHistogram tripDurationMs;
+        final LogHistogram fare;
+        boolean dirty;
+
+        StationHour() {
+            this(new LogHistogram(), new LogHistogram(), new LogHistogram());
+        }
+
+        private StationHour(LogHistogram pickupWaitMs, LogHistogram tripDurationMs, LogHistogram fare) {
+            this.pickupWaitMs = pickupWaitMs;
+            this.tripDurationMs = tripDurationMs;
+            this.fare = fare;
+        }
+
+        public synchronized void merge(StationHour other) {
+            tripsCreated += other.tripsCreated;
+            pickups += other.pickups;
+            completions += other.completions;
+            pickupWaitMs.merge(other.pickupWaitMs);
+            tripDurationMs.merge(other.tripDurationMs);
+            fare.merge(other.fare);
+        }
+
+        synchronized StationHour copy() {
+            StationHour copy = new StationHour();
+            copy.merge(this);
+            return copy;
+        }
+
+        public long getTripsCreated() { return tripsCreated; }
+        public long getPickups() { return pickups; }
+        public long getCompletions() { return completions; }
+        public LogHistogram getPickupWaitMs() { return pickupWaitMs; }
+        public LogHistogram getTripDurationMs() { return tripDurationMs; }
+        public LogHistogram getFare() { return fare; }
+
+        Document toDocument() {
+            return new Document("tripsCreated", tripsCreated)
+                    .append("pickups", pickups)
+                    .append("completions", completions)
+                    .append("pickupWaitMs", pickupWaitMs.toDocument())
+                    .append("tripDurationMs", tripDurationMs.toDocument())
+                    .append("fare", fare.toDocument());
+        }
+
+        static StationHour fromDocument(Document doc) {
+            StationHour stats = new StationHour(
+                    LogHistogram.fromDocument(doc.get("pickupWaitMs", Document.class)),
+                    LogHistogram.fromDocument(doc.get("tripDurationMs", Document.class)),
+                    LogHistogram.fromDocument(doc.get("fare", Document.class)));
+            stats.tripsCreated = doc.get("tripsCreated", 0L);
+            stats.pickups = doc.get("pickups", 0L);
+            stats.completions = doc.get("completions", 0L);
+            return stats;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.indexOps(SNAPSHOT_COLLECTION).ensureIndex(new Index()
+                .on("hourStart", Sort.Direction.ASC)
+                .on("station", Sort.Direction.ASC)
+                .named("hour_station"));
+        mongoTemplate.indexOps(SNAPSHOT_COLLECTION).ensureIndex(new Index()
+                .on("expireAt", Sort.Direction.ASC)
+                .expire(0, TimeUnit.SECONDS)
+                .named("expire_at"));
+    }
+
+    public void recordCreated(String station, long createdAt) {
+        StationHour stats = bucket(station, createdAt);
+        synchronized (stats) {
+            stats.tripsCreated++;
+            stats.dirty = true;
+        }
+    }
+
+    public void recordPickup(String station, long createdAt, long pickupTime) {
+        StationHour stats = bucket(station, pickupTime);
+        synchronized (stats) {
+            stats.pickups++;
+            if (createdAt > 0) stats.pickupWaitMs.record(pickupTime - createdAt);
+            stats.dirty = true;
+        }
+    }
+
+    public void recordDropoff(String station, long pickupTime, long dropoffTime, int fare) {
+        StationHour stats = bucket(station, dropoffTime);
+        synchronized (stats) {
+            stats.completions++;
+            if (pickupTime > 0) stats.tripDurationMs.record(dropoffTime - pickupTime);
+            stats.fare.record(fare);
+            stats.dirty = true;
+        }
+    }
+
+    /**
+     * Merged statistics of all pods for hours overlapping [fromTime, toTime), keyed by station
+     * and hour, optionally limited to one station.
+     */
+    public SortedMap<BucketKey, StationHour> query(String station, long fromTime, long toTime) {
+        long fromHour = hourStart(fromTime);
+        Query query = new Query(Criteria.where("hourStart").gte(fromHour).lt(toTime)
+                .and("podId").ne(podId));
+        if (station != null && !station.isEmpty()) {
+            query.addCriteria(Criteria.where("station").is(station));
+        }
+
+        SortedMap<BucketKey, StationHour> result = new TreeMap<>(
+                Comparator.comparing(BucketKey::station).thenComparingLong(BucketKey::hourStart));
+        for (Document snapshot : mongoTemplate.find(query, Document.class, SNAPSHOT_COLLECTION)) {
+            BucketKey key = new BucketKey(snapshot.getString("station"), snapshot.getLong("hourStart"));
+            result.computeIfAbsent(key, k -> new StationHour()).merge(StationHour.fromDocument(snapshot));
+        }
+
+        // This pod's own snapshots may be stale; its live buckets replace them
+        for (Map.Entry<BucketKey, StationHour> entry : buckets.entrySet()) {
+            BucketKey key = entry.getKey();
+            if (key.hourStart() < fromHour || key.hourStart() >= toTime) continue;
+            if (station != null && !station.isEmpty() && !station.equals(key.station())) continue;
+            result.computeIfAbsent(key, k -> new StationHour()).merge(entry.getValue().copy());
+        }
+
+        // Hours evicted from memory are still needed from our own snapshots
+        Query own = new Query(Criteria.where("hourStart").gte(fromHour).lt(Math.min(toTime, oldestLiveHour()))
+                .and("podId").is(podId));
+        if (station != null && !station.isEmpty()) {
+            own.addCriteria(Criteria.where("station").is(station));
+        }
+        for (Document snapshot : mongoTemplate.find(own, Document.class, SNAPSHOT_COLLECTION)) {
+            BucketKey key = new BucketKey(snapshot.getString("station"), snapshot.getLong("hourStart"));
+            result.computeIfAbsent(key, k -> new StationHour()).merge(StationHour.fromDocument(snapshot));
+        }
+        return result;
+    }
+
+    /**
+     * Writes changed buckets as snapshots and drops buckets that fell out of the live window.
+     */
+    @Scheduled(fixedDelayString = "${trip.stats.snapshot-interval-ms:60000}")
+    public void snapshot() {
+        long oldestLiveHour = oldestLiveHour();
+        long expireAt = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(snapshotRetentionDays);
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SNAPSHOT_COLLECTION);
+        List<StationHour> changed = new ArrayList<>();
+        Iterator<Map.Entry<BucketKey, StationHour>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<BucketKey, StationHour> entry = it.next();
+            BucketKey key = entry.getKey();
+            StationHour stats = entry.getValue();
+
+            Document snapshot;
+            synchronized (stats) {
+                if (stats.dirty) {
+                    snapshot = stats.toDocument();
+                    stats.dirty = false;
+                } else {
+                    snapshot = null;
+                }
+            }
+            if (snapshot != null) {
+                String id = podId + ":" + key.station() + ":" + key.hourStart();
+                snapshot.append("_id", id)
+                        .append("podId", podId)
+                        .append("station", key.station())
+                        .append("hourStart", key.hourStart())
+                        .append("expireAt", new Date(expireAt));
+                bulk.replaceOne(new Query(Criteria.where("_id").is(id)), snapshot, FindAndReplaceOptions.options().upsert());
+                changed.add(stats);
+            }
+            if (key.hourStart() < oldestLiveHour && snapshot == null) {
+                it.remove();
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            try {
+                bulk.execute();
+            } catch (Exception e) {
+                System.err.println("Failed to write trip stats snapshots: " + e.getMessage());
+                // Try again on the next run
+                for (StationHour stats : changed) {
+                    synchronized (stats) {
+                        stats.dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        snapshot();
+    }
+
+    private StationHour bucket(String station, long time) {
+        String key = station == null || station.isEmpty() ? "unknown" : station;
+        return buckets.computeIfAbsent(new BucketKey(key, hourStart(time)), k -> new StationHour());
+    }
+
+    private long oldestLiveHour() {
+        return hourStart(System.currentTimeMillis()) - (liveHours - 1) * HOUR_MS;
+    }
+
+    private static long hourStart(long time) {
+        return time - Math.floorMod(time, HOUR_MS);
+    }
+}
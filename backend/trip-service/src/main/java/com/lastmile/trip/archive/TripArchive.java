@@ -0,0 +1,269 @@
+package com.lastmile.trip.archive;
+
+import com.lastmile.trip.model.Trip;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Cold tier for completed trips. Trips completed more than trip.archive.after-days ago are
+ * moved out of Mongo into immutable TripSegment files, and the read paths (GetTripInfo,
+ * ListTrips, ExportTrips) consult the segments after Mongo.
+ *
+ * Archiving only runs when trip.archive.enabled is set, which deployments do only when the
+ * directory is durable storage shared by all trip-service instances. A Redis lock makes sure
+ * only one of them archives at a time. The archiving instance announces each
+ * new segment on {@link #REFRESH_CHANNEL} before deleting its trips from Mongo, and every
+ * instance also rescans the directory periodically in case it missed an announcement.
+ */
+@Component
+public class TripArchive {
+
+    private static final String LOCK_KEY = "trip-archive:lock";
+
+    public static final String REFRESH_CHANNEL = "trip-archive-refresh";
+
+    // Newest first, the order ListTrips returns
+    public static final Comparator<Trip> NEWEST_FIRST =
+            Comparator.comparingLong(Trip::getCreatedAt).thenComparing(Trip::getTripId).reversed();
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${trip.archive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${trip.archive.dir:./trip-archive}")
+    private String archiveDir;
+
+    @Value("${trip.archive.after-days:30}")
+    private int afterDays;
+
+    @Value("${trip.archive.segment-rows:10000}")
+    private int segmentRows;
+
+    @Value("${trip.archive.decoded-cache-size:8}")
+    private int decodedCacheSize;
+
+    private final String podId = UUID.randomUUID().toString();
+
+    private Path dir;
+
+    private volatile List<TripSegment.Meta> segments = List.of();
+
+    // Recently decoded segment bodies
+    private Map<Path, List<Trip>> decoded;
+
+    /**
+     * Filters an archive lookup supports; the optional cursor excludes rows at or after it in NEWEST_FIRST order.
+     */
+    public record Filter(String driverId, String riderId, long createdAfter, long createdBefore,
+                         Long cursorCreatedAt, String cursorTripId) {
+
+        boolean matches(Trip trip) {
+            if (!driverId.isEmpty() && !driverId.equals(trip.getDriverId())) return false;
+            if (!riderId.isEmpty() && !riderId.equals(trip.getRiderId())) return false;
+            if (createdAfter > 0 && trip.getCreatedAt() < createdAfter) return false;
+            if (createdBefore > 0 && trip.getCreatedAt() >= createdBefore) return false;
+            if (cursorCreatedAt != null) {
+                return trip.getCreatedAt() < cursorCreatedAt
+                        || (trip.getCreatedAt() == cursorCreatedAt && trip.getTripId().compareTo(cursorTripId) < 0);
+            }
+            return true;
+        }
+
+        boolean mayMatch(TripSegment.Meta meta) {
+            long to = createdBefore > 0 ? createdBefore : Long.MAX_VALUE;
+            if (cursorCreatedAt != null) to = Math.min(to, cursorCreatedAt + 1);
+            if (!meta.overlapsTime(createdAfter, to)) return false;
+            return driverId.isEmpty() || meta.mayHaveDriver(driverId);
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        dir = Paths.get(archiveDir);
+        Files.createDirectories(dir);
+        final int maxDecoded = decodedCacheSize;
+        decoded = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, List<Trip>> eldest) {
+                return size() > maxDecoded;
+            }
+        });
+        rescan();
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> rescan(),
+                new ChannelTopic(REFRESH_CHANNEL));
+    }
+
+    /**
+     * Picks up segments written by other instances.
+     */
+    @Scheduled(fixedDelayString = "${trip.archive.rescan-interval-ms:60000}")
+    public synchronized void rescan() {
+        Map<Path, TripSegment.Meta> known = new HashMap<>();
+        for (TripSegment.Meta meta : segments) known.put(meta.path(), meta);
+
+        List<TripSegment.Meta> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files.filter(p -> p.toString().endsWith(".seg"))::iterator) {
+                TripSegment.Meta meta = known.get(path);
+                if (meta == null) {
+                    try {
+                        meta = TripSegment.readMeta(path);
+                    } catch (IOException e) {
+                        System.err.println("Skipping unreadable trip segment " + path + ": " + e.getMessage());
+                        continue;
+                    }
+                }
+                found.add(meta);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to scan trip archive: " + e.getMessage());
+            return;
+        }
+        segments = List.copyOf(found);
+    }
+
+    /**
+     * Moves completed trips older than the cutoff into new segments, one segment per batch.
+     * Trips are deleted from Mongo only after their segment is safely on disk.
+     */
+    @Scheduled(fixedDelayString = "${trip.archive.interval-ms:3600000}", initialDelayString = "${trip.archive.initial-delay-ms:60000}")
+    public void archive() {
+        // Segments on pod-local disk would be lost with the pod, and with them the deleted trips
+        if (!enabled) return;
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, podId, Duration.ofMinutes(30));
+        if (!Boolean.TRUE.equals(locked)) return;
+
+        try {
+            long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(afterDays);
+            while (true) {
+                // Trips with undelivered side effects stay until the relay is done with them
+                Query query = new Query(Criteria.where("status").is(Trip.TripStatus.COMPLETED)
+                        .and("dropoffTime").lt(cutoff)
+                        .orOperator(Criteria.where("outbox").exists(false), Criteria.where("outbox").size(0)))
+                        .with(Sort.by("dropoffTime"))
+                        .limit(segmentRows);
+                query.fields().include("driverId", "riderId", "pickupStation", "destination",
+                        "createdAt", "pickupTime", "dropoffTime", "fare");
+                List<Trip> batch = mongoTemplate.find(query, Trip.class);
+                if (batch.isEmpty()) break;
+
+                TripSegment.Meta meta = TripSegment.write(dir, batch);
+                synchronized (this) {
+                    List<TripSegment.Meta> updated = new ArrayList<>(segments);
+                    updated.add(meta);
+                    segments = List.copyOf(updated);
+                }
+                // Other instances load the segment before its trips leave Mongo
+                redisTemplate.convertAndSend(REFRESH_CHANNEL, meta.path().getFileName().toString());
+
+                List<String> ids = batch.stream().map(Trip::getTripId).toList();
+                mongoTemplate.remove(new Query(Criteria.where("_id").in(ids)
+                        .and("status").is(Trip.TripStatus.COMPLETED)), Trip.class);
+                System.out.println("Archived " + batch.size() + " trips to " + meta.path().getFileName());
+
+                if (batch.size() < segmentRows) break;
+            }
+        } catch (Exception e) {
+            System.err.println("Trip archival failed: " + e.getMessage());
+        } finally {
+            if (podId.equals(redisTemplate.opsForValue().get(LOCK_KEY))) {
+                redisTemplate.delete(LOCK_KEY);
+            }
+        }
+    }
+
+    public Trip findById(String tripId) {
+        for (TripSegment.Meta meta : segments) {
+            if (!meta.mayHaveTrip(tripId)) continue;
+            for (Trip trip : rows(meta)) {
+                if (tripId.equals(trip.getTripId())) return trip;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The first limit matching archived trips in NEWEST_FIRST order.
+     *
+     * Segments are visited newest first. Once limit rows are collected, any segment whose newest
+     * trip is older than the last of them cannot contribute, and neither can the ones after it,
+     * so a page decodes only the segments it needs even when the filter cannot rule any out.
+     */
+    public List<Trip> page(Filter filter, int limit) {
+        if (limit <= 0) return List.of();
+        List<TripSegment.Meta> ordered = new ArrayList<>(segments);
+        ordered.sort(Comparator.comparingLong(TripSegment.Meta::maxCreatedAt).reversed());
+
+        List<Trip> result = new ArrayList<>();
+        for (TripSegment.Meta meta : ordered) {
+            if (result.size() >= limit && meta.maxCreatedAt() < result.get(limit - 1).getCreatedAt()) break;
+            if (!filter.mayMatch(meta)) continue;
+            List<Trip> rows = rows(meta);
+            int taken = 0;
+            // Rows are stored oldest first
+            for (int i = rows.size() - 1; i >= 0 && taken < limit; i--) {
+                if (filter.matches(rows.get(i))) {
+                    result.add(rows.get(i));
+                    taken++;
+                }
+            }
+            result.sort(NEWEST_FIRST);
+            if (result.size() > limit) result = new ArrayList<>(result.subList(0, limit));
+        }
+        return result;
+    }
+
+    /**
+     * Visits every matching archived trip, newest segment first, until visitor returns false.
+     */
+    public void forEach(Filter filter, Predicate<Trip> visitor) {
+        List<TripSegment.Meta> ordered = new ArrayList<>(segments);
+        ordered.sort(Comparator.comparingLong(TripSegment.Meta::maxCreatedAt).reversed());
+        for (TripSegment.Meta meta : ordered) {
+            if (!filter.mayMatch(meta)) continue;
+            List<Trip> rows = rows(meta);
+            for (int i = rows.size() - 1; i >= 0; i--) {
+                if (filter.matches(rows.get(i)) && !visitor.test(rows.get(i))) return;
+            }
+        }
+    }
+
+    private List<Trip> rows(TripSegment.Meta meta) {
+        List<Trip> rows = decoded.get(meta.path());
+        if (rows != null) return rows;
+        try {
+            rows = TripSegment.readRows(meta.path());
+        } catch (IOException e) {
+            System.err.println("Failed to read trip segment " + meta.path() + ": " + e.getMessage());
+            return List.of();
+        }
+        decoded.put(meta.path(), rows);
+        return rows;
+    }
+}
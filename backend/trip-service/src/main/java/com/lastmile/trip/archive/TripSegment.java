@@ -0,0 +1,235 @@
+package com.lastmile.trip.archive;
+
+import com.lastmile.trip.model.Trip;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable on-disk segment of archived (completed) trips.
+ *
+ * Layout: an uncompressed header with the row count, the min/max createdAt, the min/max
+ * driverId and a Bloom filter of trip ids, followed by a gzip-compressed body stored column
+ * by column. Rows are sorted by createdAt; string columns other than the trip id are
+ * dictionary-encoded, and times are varint deltas. Queries can rule a segment out from its
+ * header alone and only decompress the body when it may hold matching rows.
+ */
+public final class TripSegment {
+
+    private static final int MAGIC = 0x54534731; // "TSG1"
+    private static final int BLOOM_BITS_PER_ROW = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private TripSegment() {}
+
+    /**
+     * Header of a segment, kept in memory for every segment on disk.
+     */
+    public record Meta(Path path, int rowCount, long minCreatedAt, long maxCreatedAt,
+                       String minDriverId, String maxDriverId, long[] bloom) {
+
+        public boolean overlapsTime(long fromInclusive, long toExclusive) {
+            return maxCreatedAt >= fromInclusive && minCreatedAt < toExclusive;
+        }
+
+        public boolean mayHaveDriver(String driverId) {
+            return driverId.compareTo(minDriverId) >= 0 && driverId.compareTo(maxDriverId) <= 0;
+        }
+
+        public boolean mayHaveTrip(String tripId) {
+            long bits = (long) bloom.length * 64;
+            int h1 = tripId.hashCode();
+            int h2 = mix(h1);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bits);
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes trips to a new segment file in dir. The file is fsynced and moved into place
+     * atomically, so readers never see a partial segment.
+     */
+    public static Meta write(Path dir, List<Trip> trips) throws IOException {
+        List<Trip> rows = new ArrayList<>(trips);
+        rows.sort(Comparator.comparingLong(Trip::getCreatedAt).thenComparing(Trip::getTripId));
+
+        long[] bloom = new long[Math.max(1, (rows.size() * BLOOM_BITS_PER_ROW + 63) / 64)];
+        String minDriver = null, maxDriver = null;
+        for (Trip trip : rows) {
+            addToBloom(bloom, trip.getTripId());
+            String driverId = nonNull(trip.getDriverId());
+            if (minDriver == null || driverId.compareTo(minDriver) < 0) minDriver = driverId;
+            if (maxDriver == null || driverId.compareTo(maxDriver) > 0) maxDriver = driverId;
+        }
+        long minCreatedAt = rows.isEmpty() ? 0 : rows.get(0).getCreatedAt();
+        long maxCreatedAt = rows.isEmpty() ? 0 : rows.get(rows.size() - 1).getCreatedAt();
+
+        Path target = dir.resolve("trips-" + minCreatedAt + "-" + UUID.randomUUID() + ".seg");
+        Path tmp = dir.resolve(target.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(file));
+            header.writeInt(MAGIC);
+            header.writeInt(rows.size());
+            header.writeLong(minCreatedAt);
+            header.writeLong(maxCreatedAt);
+            header.writeUTF(minDriver == null ? "" : minDriver);
+            header.writeUTF(maxDriver == null ? "" : maxDriver);
+            header.writeInt(bloom.length);
+            for (long word : bloom) header.writeLong(word);
+            header.flush();
+
+            GZIPOutputStream gzip = new GZIPOutputStream(file, 64 * 1024);
+            DataOutputStream body = new DataOutputStream(new BufferedOutputStream(gzip, 64 * 1024));
+            for (Trip trip : rows) body.writeUTF(trip.getTripId());
+            writeDictionaryColumn(body, rows, Trip::getDriverId);
+            writeDictionaryColumn(body, rows, Trip::getRiderId);
+            writeDictionaryColumn(body, rows, Trip::getPickupStation);
+            writeDictionaryColumn(body, rows, Trip::getDestination);
+            long previous = minCreatedAt;
+            for (Trip trip : rows) {
+                writeVarLong(body, trip.getCreatedAt() - previous);
+                previous = trip.getCreatedAt();
+            }
+            for (Trip trip : rows) writeVarLong(body, zigZag(trip.getPickupTime() - trip.getCreatedAt()));
+            for (Trip trip : rows) writeVarLong(body, zigZag(trip.getDropoffTime() - trip.getPickupTime()));
+            for (Trip trip : rows) writeVarLong(body, zigZag(trip.getFare()));
+            body.flush();
+            gzip.finish();
+            file.getChannel().force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        return new Meta(target, rows.size(), minCreatedAt, maxCreatedAt,
+                minDriver == null ? "" : minDriver, maxDriver == null ? "" : maxDriver, bloom);
+    }
+
+    public static Meta readMeta(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return readHeader(path, in);
+        }
+    }
+
+    /**
+     * Decodes every row of the segment, ordered by createdAt.
+     */
+    public static List<Trip> readRows(Path path) throws IOException {
+        try (FileInputStream file = new FileInputStream(path.toFile())) {
+            DataInputStream header = new DataInputStream(file);
+            Meta meta = readHeader(path, header);
+            int n = meta.rowCount();
+
+            DataInputStream body = new DataInputStream(new BufferedInputStream(new GZIPInputStream(file, 64 * 1024), 64 * 1024));
+            List<Trip> rows = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                Trip trip = new Trip();
+                trip.setTripId(body.readUTF());
+                trip.setStatus(Trip.TripStatus.COMPLETED);
+                rows.add(trip);
+            }
+            readDictionaryColumn(body, rows, Trip::setDriverId);
+            readDictionaryColumn(body, rows, Trip::setRiderId);
+            readDictionaryColumn(body, rows, Trip::setPickupStation);
+            readDictionaryColumn(body, rows, Trip::setDestination);
+            long createdAt = meta.minCreatedAt();
+            for (Trip trip : rows) {
+                createdAt += readVarLong(body);
+                trip.setCreatedAt(createdAt);
+            }
+            for (Trip trip : rows) trip.setPickupTime(trip.getCreatedAt() + unZigZag(readVarLong(body)));
+            for (Trip trip : rows) trip.setDropoffTime(trip.getPickupTime() + unZigZag(readVarLong(body)));
+            for (Trip trip : rows) trip.setFare((int) unZigZag(readVarLong(body)));
+            return rows;
+        }
+    }
+
+    private static Meta readHeader(Path path, DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a trip segment: " + path);
+        }
+        int rowCount = in.readInt();
+        long minCreatedAt = in.readLong();
+        long maxCreatedAt = in.readLong();
+        String minDriver = in.readUTF();
+        String maxDriver = in.readUTF();
+        long[] bloom = new long[in.readInt()];
+        for (int i = 0; i < bloom.length; i++) bloom[i] = in.readLong();
+        return new Meta(path, rowCount, minCreatedAt, maxCreatedAt, minDriver, maxDriver, bloom);
+    }
+
+    private interface Getter { String get(Trip trip); }
+
+    private interface Setter { void set(Trip trip, String value); }
+
+    private static void writeDictionaryColumn(DataOutputStream out, List<Trip> rows, Getter getter) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int[] codes = new int[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            codes[i] = dictionary.computeIfAbsent(nonNull(getter.get(rows.get(i))), k -> dictionary.size());
+        }
+        writeVarLong(out, dictionary.size());
+        for (String value : dictionary.keySet()) out.writeUTF(value);
+        for (int code : codes) writeVarLong(out, code);
+    }
+
+    private static void readDictionaryColumn(DataInputStream in, List<Trip> rows, Setter setter) throws IOException {
+        String[] dictionary = new String[(int) readVarLong(in)];
+        for (int i = 0; i < dictionary.length; i++) dictionary[i] = in.readUTF();
+        for (Trip trip : rows) setter.set(trip, dictionary[(int) readVarLong(in)]);
+    }
+
+    private static void addToBloom(long[] bloom, String tripId) {
+        long bits = (long) bloom.length * 64;
+        int h1 = tripId.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,126 @@
+package com.lastmile.trip.cache;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.lastmile.user.proto.BatchGetUserProfilesRequest;
+import com.lastmile.user.proto.BatchGetUserProfilesResponse;
+import com.lastmile.user.proto.UserServiceGrpc;
+import com.lastmile.user.proto.UserSummary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded, TTL-based cache of user display names. Misses are resolved with a single
+ * BatchGetUserProfiles call, and entries are dropped when user-service announces a
+ * profile change.
+ */
+@Component
+public class DisplayNameCache {
+
+    private static final String PROFILE_CHANGED_CHANNEL = "user-profile-changed";
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${trip.display-name-cache.size:10000}")
+    private int maxEntries;
+
+    @Value("${trip.display-name-cache.ttl-ms:600000}")
+    private long ttlMs;
+
+    private Map<String, CachedName> cache;
+
+    private record CachedName(String name, long expiresAt) {}
+
+    // Bumped on every profile change; a batch that overlapped one does not cache what it read
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        final int limit = maxEntries;
+        cache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedName> eldest) {
+                return size() > limit;
+            }
+        });
+
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> {
+                    invalidations.incrementAndGet();
+                    cache.remove(new String(message.getBody()));
+                },
+                new ChannelTopic(PROFILE_CHANGED_CHANNEL));
+    }
+
+    /**
+     * Resolves display names for the given users. Cached names are returned directly; the rest
+     * come from one batch call on the given (already authenticated, deadline-bound) stub. Users
+     * that cannot be resolved get fallbackName(userId) and are not cached.
+     */
+    public CompletableFuture<Map<String, String>> resolve(UserServiceGrpc.UserServiceFutureStub userStub,
+                                                          Collection<String> userIds,
+                                                          Function<String, String> fallbackName) {
+        long now = System.currentTimeMillis();
+        Map<String, String> names = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String userId : new LinkedHashSet<>(userIds)) {
+            CachedName cached = cache.get(userId);
+            if (cached != null && cached.expiresAt() > now) {
+                names.put(userId, cached.name());
+            } else {
+                misses.add(userId);
+            }
+        }
+        if (misses.isEmpty()) {
+            return CompletableFuture.completedFuture(names);
+        }
+
+        long generation = invalidations.get();
+        CompletableFuture<List<UserSummary>> batch = new CompletableFuture<>();
+        Futures.addCallback(userStub.batchGetUserProfiles(
+                BatchGetUserProfilesRequest.newBuilder().addAllUserIds(misses).build()),
+            new FutureCallback<BatchGetUserProfilesResponse>() {
+                @Override
+                public void onSuccess(BatchGetUserProfilesResponse response) {
+                    batch.complete(response.getSuccess() ? response.getUsersList() : List.of());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    batch.completeExceptionally(t);
+                }
+            }, MoreExecutors.directExecutor());
+
+        return batch.handle((users, e) -> {
+            if (e != null) {
+                System.err.println("Failed to fetch display names: " + e.getMessage());
+            } else {
+                long expiresAt = System.currentTimeMillis() + ttlMs;
+                for (UserSummary user : users) {
+                    names.put(user.getUserId(), user.getName());
+                    // Re-checked per entry under the map's lock, so a change arriving mid-loop still wins
+                    synchronized (cache) {
+                        if (invalidations.get() == generation) {
+                            cache.put(user.getUserId(), new CachedName(user.getName(), expiresAt));
+                        }
+                    }
+                }
+            }
+            for (String userId : misses) {
+                names.putIfAbsent(userId, fallbackName.apply(userId));
+            }
+            return names;
+        });
+    }
+}
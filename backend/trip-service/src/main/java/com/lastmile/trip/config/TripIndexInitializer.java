@@ -0,0 +1,32 @@
+package com.lastmile.trip.config;
+
+import com.lastmile.trip.model.Trip;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.stereotype.Component;
+
+/**
+ * Indexes backing ListTrips: one per filter, each ordered by createdAt so a page is an index range scan.
+ */
+@Component
+public class TripIndexInitializer implements CommandLineRunner {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public void run(String... args) {
+        IndexOperations indexOps = mongoTemplate.indexOps(Trip.class);
+        for (String field : new String[] {"driverId", "riderId", "status"}) {
+            indexOps.ensureIndex(new Index()
+                    .on(field, Sort.Direction.ASC)
+                    .on("createdAt", Sort.Direction.DESC)
+                    .on("_id", Sort.Direction.DESC)
+                    .named(field + "_created_at"));
+        }
+    }
+}
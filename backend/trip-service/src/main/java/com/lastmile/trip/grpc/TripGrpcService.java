@@ -1,20 +1,26 @@
 package com.lastmile.trip.grpc;
 
+import com.lastmile.trip.analytics.LogHistogram;
+import com.lastmile.trip.analytics.TripStatsAggregator;
+import com.lastmile.trip.archive.TripArchive;
 import com.lastmile.trip.model.Trip;
 import com.lastmile.trip.proto.*;
 import com.lastmile.trip.repository.TripRepository;
-import com.lastmile.driver.proto.*;
-import com.lastmile.rider.proto.*;
-import com.lastmile.user.proto.*;
-import io.grpc.Metadata;
-import io.grpc.stub.AbstractStub;
-import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
-import net.devh.boot.grpc.client.inject.GrpcClient;
 import org.springframework.beans.factory.annotation.Autowired;
-
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.Stream;
 
 @GrpcService
 public class TripGrpcService extends TripServiceGrpc.TripServiceImplBase {
@@ -22,41 +28,65 @@ public class TripGrpcService extends TripServiceGrpc.TripServiceImplBase {
     @Autowired
     private TripRepository tripRepository;
 
-    @Autowired
-    private org.springframework.data.redis.core.RedisTemplate<String, String> redisTemplate;
-
     @Autowired
     private org.springframework.data.redis.listener.RedisMessageListenerContainer redisMessageListenerContainer;
 
-    @GrpcClient("rider-service")
-    private RiderServiceGrpc.RiderServiceBlockingStub riderStub;
+    @Autowired
+    private MongoTemplate mongoTemplate;
 
-    @GrpcClient("driver-service")
-    private DriverServiceGrpc.DriverServiceBlockingStub driverStub;
+    @Autowired
+    private TripStatsAggregator tripStats;
 
-    @GrpcClient("user-service")
-    private UserServiceGrpc.UserServiceBlockingStub userStub;
+    @Autowired
+    private TripArchive tripArchive;
+
+    @Value("${trip.list.default-page-size:20}")
+    private int defaultPageSize;
+
+    @Value("${trip.list.max-page-size:100}")
+    private int maxPageSize;
+
+    private static final Sort TRIP_ORDER = Sort.by(Sort.Direction.DESC, "createdAt", "_id");
+
+    private static final String[] TRIP_ITEM_FIELDS = {
+        "driverId", "riderId", "pickupStation", "destination", "status", "createdAt", "pickupTime", "dropoffTime", "fare"
+    };
+
+    /**
+     * Moves a trip from {@code from} to {@code to} and queues the transition's side effect in the
+     * trip's outbox, as one conditional update. Delivery to driver/rider services is left to
+     * TripOutboxRelay.
+     *
+     * The update only matches while the trip is still in {@code from}, so a duplicate or retried
+     * call matches nothing and leaves the document untouched. Only on that path is the trip read
+     * again, to tell a missing trip apart from a rejected transition.
+     */
+    private Trip transition(String tripId, Trip.TripStatus from, Trip.TripStatus to, Update update,
+                            Trip.TripEvent.EventType eventType) {
+        update.set("status", to)
+                .inc("version", 1)
+                .push("outbox", outboxEvent(eventType))
+                .min("outboxDueAt", System.currentTimeMillis());
+        // Returns just the timing fields the analytics need
+        Query query = new Query(Criteria.where("_id").is(tripId).and("status").is(from));
+        query.fields().include("pickupStation", "createdAt", "pickupTime", "dropoffTime", "fare");
+        Trip trip = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Trip.class);
+        if (trip != null) {
+            return trip;
+        }
 
-    private <T extends AbstractStub<T>> T attachToken(T stub) {
-        String token = AuthInterceptor.AUTH_TOKEN_KEY.get();
-        if (token == null) return stub;
-        Metadata headers = new Metadata();
-        headers.put(Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER), "Bearer " + token);
-        return MetadataUtils.attachHeaders(stub, headers);
+        Query current = new Query(Criteria.where("_id").is(tripId));
+        current.fields().include("status");
+        Trip existing = mongoTemplate.findOne(current, Trip.class);
+        if (existing == null) {
+            throw new RuntimeException("Trip not found");
+        }
+        throw new IllegalStateException("Trip is " + existing.getStatus() + ", expected " + from);
     }
 
-    private void publishTripUpdate(String tripId, String status, String driverId, String riderId) {
-        // Publish to trip channel
-        String tripChannel = "trip-updates:" + tripId;
-        String message = tripId + "," + status;
-        redisTemplate.convertAndSend(tripChannel, message);
-
-        // Publish to driver dashboard
-        if (driverId != null) {
-            String driverChannel = "driver-dashboard:" + driverId;
-            String driverMessage = "TRIP_UPDATE," + tripId + "," + status;
-            redisTemplate.convertAndSend(driverChannel, driverMessage);
-        }
+    // Events remember the user who caused them; the relay delivers them on that user's behalf
+    private static Trip.TripEvent outboxEvent(Trip.TripEvent.EventType type) {
+        return Trip.TripEvent.of(type, AuthInterceptor.USER_ID_KEY.get(), AuthInterceptor.USER_TYPE_KEY.get());
     }
     
     @Override
@@ -89,77 +119,28 @@ public class TripGrpcService extends TripServiceGrpc.TripServiceImplBase {
             trip.setStatus(Trip.TripStatus.SCHEDULED);
             trip.setCreatedAt(System.currentTimeMillis());
             trip.setFare(fare);
+            // Driver acceptance and rider notification are delivered by the outbox relay
+            trip.setOutbox(new ArrayList<>(List.of(
+                    outboxEvent(Trip.TripEvent.EventType.TRIP_CREATED))));
+            trip.setOutboxDueAt(trip.getCreatedAt());
             
-            trip = tripRepository.save(trip);
-
-
-
-            // Fetch Rider Info for Rating
-            double riderRating = 0.0;
-            try {
-                GetRiderInfoResponse riderInfo = attachToken(riderStub).getRiderInfo(
-                    GetRiderInfoRequest.newBuilder().setRiderId(riderId).build()
-                );
-                if (riderInfo.getSuccess()) {
-                    riderRating = riderInfo.getRating();
-                }
-            } catch (Exception e) {
-                System.err.println("Failed to fetch rider info: " + e.getMessage());
-            }
-
-            // Fetch Rider Name from User Service
-            String riderName = "Rider " + riderId;
+            trip.setVersion(0);
+            
+            // Insert rather than save, so a retried create cannot reset a trip that has moved on
             try {
-                GetUserProfileResponse userProfile = attachToken(userStub).getUserProfile(
-                    GetUserProfileRequest.newBuilder().setUserId(riderId).build()
-                );
-                if (userProfile.getSuccess()) {
-                    riderName = userProfile.getName();
-                }
-            } catch (Exception e) {
-                System.err.println("Failed to fetch rider name: " + e.getMessage());
+                trip = mongoTemplate.insert(trip);
+            } catch (DuplicateKeyException e) {
+                responseBuilder.setTripId(tripId)
+                        .setSuccess(true)
+                        .setMessage("Trip already exists");
+                responseObserver.onNext(responseBuilder.build());
+                responseObserver.onCompleted();
+                return;
             }
+            tripStats.recordCreated(pickupStation, trip.getCreatedAt());
 
-            // Notify Driver
-            try {
-                AcceptTripResponse driverResponse = attachToken(driverStub).acceptTrip(AcceptTripRequest.newBuilder()
-                    .setDriverId(driverId)
-                    .setTripId(tripId)
-                    .setRiderId(riderId)
-                    .setRiderName(riderName)
-                    .setRiderRating(riderRating)
-                    .setPickupStation(pickupStation)
-                    .setDestination(destination)
-                    .setFare(fare)
-                    .build());
-            } catch (Exception e) {
-                System.err.println("Failed to notify driver: " + e.getMessage());
-            }
 
-            publishTripUpdate(trip.getTripId(), "SCHEDULED", driverId, riderId);
 
-            String driverName = "Driver " + driverId;
-            try {
-                GetUserProfileResponse userProfile = attachToken(userStub).getUserProfile(
-                    GetUserProfileRequest.newBuilder().setUserId(driverId).build()
-                );
-                if (userProfile.getSuccess()) {
-                    driverName = userProfile.getName();
-                }
-            } catch (Exception e) {
-                System.err.println("Failed to fetch driver name: " + e.getMessage());
-            }
-            // Notify Rider
-            try {
-                attachToken(riderStub).matchedWithDriver(MatchedWithDriverRequest.newBuilder()
-                    .setRiderId(riderId)
-                    .setDriverId(driverId)
-                    .setTripId(tripId)
-                    .setDriverName(driverName)
-                    .build());
-            } catch (Exception e) {
-                System.err.println("Failed to notify rider: " + e.getMessage());
-            }
             System.out.println("Trip created successfully");    
             responseBuilder.setTripId(trip.getTripId())
                     .setSuccess(true)
@@ -183,8 +164,10 @@ public class TripGrpcService extends TripServiceGrpc.TripServiceImplBase {
         GetTripInfoResponse.Builder responseBuilder = GetTripInfoResponse.newBuilder();
         
         try {
-            Trip trip = tripRepository.findById(tripId)
-                    .orElseThrow(() -> new RuntimeException("Trip not found"));
+            Trip trip = tripRepository.findById(tripId).orElseGet(() -> tripArchive.findById(tripId));
+            if (trip == null) {
+                throw new RuntimeException("Trip not found");
+            }
             
             responseBuilder.setTripId(trip.getTripId())
                     .setDriverId(trip.getDriverId())
@@ -213,35 +196,11 @@ public class TripGrpcService extends TripServiceGrpc.TripServiceImplBase {
         RecordPickupResponse.Builder responseBuilder = RecordPickupResponse.newBuilder();
         
         try {
-            Trip trip = tripRepository.findById(tripId)
-                    .orElseThrow(() -> new RuntimeException("Trip not found"));
-            trip.setPickupTime(System.currentTimeMillis());
-            trip.setStatus(Trip.TripStatus.ACTIVE);
-            tripRepository.save(trip);
-
-
-
-            // Notify Driver
-            try {
-                attachToken(driverStub).startTrip(StartTripRequest.newBuilder()
-                    .setDriverId(trip.getDriverId())
-                    .setTripId(tripId)
-                    .build());
-            } catch (Exception e) {
-                System.err.println("Failed to start trip on driver service: " + e.getMessage());
-            }
-
-            publishTripUpdate(tripId, "ACTIVE", trip.getDriverId(), trip.getRiderId());
-
-            // Notify Rider
-            try {
-                attachToken(riderStub).rideStarted(RideStartedRequest.newBuilder()
-                    .setRiderId(trip.getRiderId())
-                    .setTripId(tripId)
-                    .build());
-            } catch (Exception e) {
-                System.err.println("Failed to notify rider of ride start: " + e.getMessage());
-            }
+            Update update = new Update()
+                    .set("pickupTime", System.currentTimeMillis());
+            Trip trip = transition(tripId, Trip.TripStatus.SCHEDULED, Trip.TripStatus.ACTIVE, update,
+                    Trip.TripEvent.EventType.TRIP_STARTED);
+            tripStats.recordPickup(trip.getPickupStation(), trip.getCreatedAt(), trip.getPickupTime());
             
             responseBuilder.setSuccess(true)
                     .setMessage("Pickup recorded successfully");
@@ -263,40 +222,14 @@ public class TripGrpcService extends TripServiceGrpc.TripServiceImplBase {
         RecordDropoffResponse.Builder responseBuilder = RecordDropoffResponse.newBuilder();
         
         try {
-            Trip trip = tripRepository.findById(tripId)
-                    .orElseThrow(() -> new RuntimeException("Trip not found"));
-            trip.setDropoffTime(System.currentTimeMillis());
-            trip.setStatus(Trip.TripStatus.COMPLETED);
+            Update update = new Update()
+                    .set("dropoffTime", System.currentTimeMillis());
             if (fare > 0) {
-                trip.setFare(fare);
-            }
-            tripRepository.save(trip);
-
-
-
-            // Notify Driver
-            try {
-                attachToken(driverStub).completeActiveTrip(CompleteActiveTripRequest.newBuilder()
-                    .setDriverId(trip.getDriverId())
-                    .setTripId(tripId)
-                    .build());
-            } catch (Exception e) {
-                System.err.println("Failed to complete trip on driver service: " + e.getMessage());
-            }
-
-            publishTripUpdate(tripId, "COMPLETED", trip.getDriverId(), trip.getRiderId());
-
-            // Notify Rider
-            try {
-                attachToken(riderStub).rideCompleted(RideCompletedRequest.newBuilder()
-                    .setRiderId(trip.getRiderId())
-                    .setTripId(tripId)
-                    .setDropoffTime(trip.getDropoffTime())
-                    .setFare(trip.getFare())
-                    .build());
-            } catch (Exception e) {
-                System.err.println("Failed to notify rider of ride completion: " + e.getMessage());
+                update.set("fare", fare);
             }
+            Trip trip = transition(tripId, Trip.TripStatus.ACTIVE, Trip.TripStatus.COMPLETED, update,
+                    Trip.TripEvent.EventType.TRIP_COMPLETED);
+            tripStats.recordDropoff(trip.getPickupStation(), trip.getPickupTime(), trip.getDropoffTime(), trip.getFare());
             
             responseBuilder.setSuccess(true)
                     .setMessage("Dropoff recorded successfully");
@@ -351,6 +284,203 @@ public class TripGrpcService extends TripServiceGrpc.TripServiceImplBase {
         });
     }
     
+    @Override
+    public void listTrips(ListTripsRequest request, StreamObserver<ListTripsResponse> responseObserver) {
+        ListTripsResponse.Builder responseBuilder = ListTripsResponse.newBuilder();
+
+        try {
+            Query query = tripQuery(request);
+            if (query == null) {
+                responseBuilder.setSuccess(false).setMessage("driver_id, rider_id or status is required");
+            } else {
+                int pageSize = request.getPageSize() > 0 ? Math.min(request.getPageSize(), maxPageSize) : defaultPageSize;
+                String pageToken = request.getPageToken();
+                Long cursorCreatedAt = null;
+                String cursorTripId = null;
+                if (!pageToken.isEmpty()) {
+                    String[] cursor = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8).split(":", 2);
+                    cursorCreatedAt = Long.parseLong(cursor[0]);
+                    cursorTripId = cursor[1];
+                    query.addCriteria(new Criteria().orOperator(
+                            Criteria.where("createdAt").lt(cursorCreatedAt),
+                            Criteria.where("createdAt").is(cursorCreatedAt).and("_id").lt(cursorTripId)));
+                }
+                query.limit(pageSize + 1);
+
+                List<Trip> page = mongoTemplate.find(query, Trip.class);
+                if (includesArchive(request)) {
+                    // Same cursor on both tiers, so merging the two candidate lists gives the right page
+                    page = mergeNewestFirst(page, tripArchive.page(archiveFilter(request, cursorCreatedAt, cursorTripId), pageSize + 1));
+                }
+                for (Trip trip : page.subList(0, Math.min(pageSize, page.size()))) {
+                    responseBuilder.addTrips(mapToItem(trip));
+                }
+                if (page.size() > pageSize) {
+                    Trip last = page.get(pageSize - 1);
+                    responseBuilder.setNextPageToken(Base64.getUrlEncoder().withoutPadding().encodeToString(
+                            (last.getCreatedAt() + ":" + last.getTripId()).getBytes(StandardCharsets.UTF_8)));
+                }
+                responseBuilder.setSuccess(true);
+            }
+        } catch (Exception e) {
+            responseBuilder.setSuccess(false).setMessage(e.getMessage());
+        }
+
+        responseObserver.onNext(responseBuilder.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void exportTrips(ListTripsRequest request, StreamObserver<TripItem> responseObserver) {
+        io.grpc.stub.ServerCallStreamObserver<TripItem> serverObserver =
+            (io.grpc.stub.ServerCallStreamObserver<TripItem>) responseObserver;
+
+        Query query = tripQuery(request);
+        if (query == null) {
+            responseObserver.onError(io.grpc.Status.INVALID_ARGUMENT
+                    .withDescription("driver_id, rider_id or status is required").asRuntimeException());
+            return;
+        }
+
+        // Cursor-backed: only one batch of trips is held in memory at a time
+        try (Stream<Trip> trips = mongoTemplate.stream(query, Trip.class)) {
+            Iterator<Trip> it = trips.iterator();
+            while (it.hasNext() && !serverObserver.isCancelled()) {
+                responseObserver.onNext(mapToItem(it.next()));
+            }
+            // Archived trips follow the live ones
+            if (includesArchive(request)) {
+                tripArchive.forEach(archiveFilter(request, null, null), trip -> {
+                    if (serverObserver.isCancelled()) return false;
+                    responseObserver.onNext(mapToItem(trip));
+                    return true;
+                });
+            }
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            responseObserver.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    /**
+     * Only completed trips are archived, so other status filters never need the archive.
+     */
+    private boolean includesArchive(ListTripsRequest request) {
+        return !request.hasStatus() || request.getStatus() == com.lastmile.trip.proto.TripStatus.COMPLETED;
+    }
+
+    private TripArchive.Filter archiveFilter(ListTripsRequest request, Long cursorCreatedAt, String cursorTripId) {
+        return new TripArchive.Filter(request.getDriverId(), request.getRiderId(),
+                request.getCreatedAfter(), request.getCreatedBefore(), cursorCreatedAt, cursorTripId);
+    }
+
+    /**
+     * Merges live and archived candidates; a trip briefly present in both tiers is taken from Mongo.
+     */
+    private List<Trip> mergeNewestFirst(List<Trip> live, List<Trip> archived) {
+        if (archived.isEmpty()) return live;
+        Map<String, Trip> byId = new LinkedHashMap<>();
+        for (Trip trip : live) byId.put(trip.getTripId(), trip);
+        for (Trip trip : archived) byId.putIfAbsent(trip.getTripId(), trip);
+        List<Trip> merged = new ArrayList<>(byId.values());
+        merged.sort(TripArchive.NEWEST_FIRST);
+        return merged;
+    }
+
+    /**
+     * Builds the filter/sort shared by ListTrips and ExportTrips, or null when no indexed filter is given.
+     */
+    private Query tripQuery(ListTripsRequest request) {
+        Query query = new Query().with(TRIP_ORDER);
+        if (!request.getDriverId().isEmpty()) {
+            query.addCriteria(Criteria.where("driverId").is(request.getDriverId()));
+        }
+        if (!request.getRiderId().isEmpty()) {
+            query.addCriteria(Criteria.where("riderId").is(request.getRiderId()));
+        }
+        if (request.hasStatus()) {
+            query.addCriteria(Criteria.where("status").is(convertStatus(request.getStatus())));
+        }
+        if (query.getQueryObject().isEmpty()) return null;
+
+        if (request.getCreatedAfter() > 0 || request.getCreatedBefore() > 0) {
+            Criteria createdAt = Criteria.where("createdAt");
+            if (request.getCreatedAfter() > 0) createdAt.gte(request.getCreatedAfter());
+            if (request.getCreatedBefore() > 0) createdAt.lt(request.getCreatedBefore());
+            query.addCriteria(createdAt);
+        }
+
+        query.fields().include(TRIP_ITEM_FIELDS);
+        return query;
+    }
+
+    @Override
+    public void getTripStats(GetTripStatsRequest request, StreamObserver<GetTripStatsResponse> responseObserver) {
+        GetTripStatsResponse.Builder responseBuilder = GetTripStatsResponse.newBuilder();
+
+        try {
+            long toTime = request.getToTime() > 0 ? request.getToTime() : System.currentTimeMillis();
+            long fromTime = request.getFromTime() > 0 ? request.getFromTime() : toTime - 24 * 60 * 60 * 1000L;
+
+            SortedMap<TripStatsAggregator.BucketKey, TripStatsAggregator.StationHour> stats =
+                    tripStats.query(request.getStation(), fromTime, toTime);
+            if (request.getMergeHours()) {
+                // Histograms are mergeable, so a station's range is just the sum of its hours
+                SortedMap<TripStatsAggregator.BucketKey, TripStatsAggregator.StationHour> merged = new TreeMap<>(stats.comparator());
+                for (Map.Entry<TripStatsAggregator.BucketKey, TripStatsAggregator.StationHour> entry : stats.entrySet()) {
+                    merged.merge(new TripStatsAggregator.BucketKey(entry.getKey().station(), fromTime), entry.getValue(),
+                            (a, b) -> { a.merge(b); return a; });
+                }
+                stats = merged;
+            }
+
+            for (Map.Entry<TripStatsAggregator.BucketKey, TripStatsAggregator.StationHour> entry : stats.entrySet()) {
+                TripStatsAggregator.StationHour hour = entry.getValue();
+                responseBuilder.addStats(StationHourStats.newBuilder()
+                        .setStation(entry.getKey().station())
+                        .setHourStart(entry.getKey().hourStart())
+                        .setTripsCreated(hour.getTripsCreated())
+                        .setPickups(hour.getPickups())
+                        .setCompletions(hour.getCompletions())
+                        .setPickupWaitMs(summarize(hour.getPickupWaitMs()))
+                        .setTripDurationMs(summarize(hour.getTripDurationMs()))
+                        .setFare(summarize(hour.getFare())));
+            }
+            responseBuilder.setSuccess(true);
+        } catch (Exception e) {
+            responseBuilder.setSuccess(false).setMessage(e.getMessage());
+        }
+
+        responseObserver.onNext(responseBuilder.build());
+        responseObserver.onCompleted();
+    }
+
+    private DistributionSummary summarize(LogHistogram histogram) {
+        return DistributionSummary.newBuilder()
+                .setCount(histogram.getCount())
+                .setMean(histogram.getMean())
+                .setP50(histogram.percentile(50))
+                .setP90(histogram.percentile(90))
+                .setP99(histogram.percentile(99))
+                .setMax(histogram.getMax())
+                .build();
+    }
+
+    private TripItem mapToItem(Trip trip) {
+        return TripItem.newBuilder()
+                .setTripId(trip.getTripId())
+                .setDriverId(trip.getDriverId() != null ? trip.getDriverId() : "")
+                .setRiderId(trip.getRiderId() != null ? trip.getRiderId() : "")
+                .setPickupStation(trip.getPickupStation() != null ? trip.getPickupStation() : "")
+                .setDestination(trip.getDestination() != null ? trip.getDestination() : "")
+                .setStatus(convertStatusToProto(trip.getStatus()))
+                .setCreatedAt(trip.getCreatedAt())
+                .setPickupTime(trip.getPickupTime())
+                .setDropoffTime(trip.getDropoffTime())
+                .setFare(trip.getFare())
+                .build();
+    }
+    
     private Trip.TripStatus convertStatus(com.lastmile.trip.proto.TripStatus status) {
         return switch (status) {
             case SCHEDULED -> Trip.TripStatus.SCHEDULED;
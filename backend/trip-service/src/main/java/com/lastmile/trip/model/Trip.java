@@ -4,6 +4,10 @@ import lombok.Data;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
 @Data
 @Document(collection = "trips")
 public class Trip {
@@ -18,9 +22,44 @@ public class Trip {
     private long pickupTime;
     private long dropoffTime;
     private int fare;
+    private long version; // bumped by every status transition
+
+    // Side effects still to be delivered to driver/rider services, oldest first.
+    // Written in the same document update as the state change that caused them.
+    private List<TripEvent> outbox;
+    private List<TripEvent> failedEvents;
+    private Long outboxDueAt;      // when the relay should next look at this trip; absent when outbox is empty
+    private Long outboxLeaseUntil; // set while a relay instance is delivering this trip's events
+    private String outboxLeaseToken; // identifies that claim, so an expired holder cannot touch a newer one
     
     public enum TripStatus {
         SCHEDULED, ACTIVE, COMPLETED
     }
+
+    @Data
+    public static class TripEvent {
+        private String eventId;
+        private EventType type;
+        private long createdAt;
+        private int attempts;
+        private String lastError;
+        private String actorId;   // user whose request caused the event, passed on when it is delivered
+        private String actorType;
+        private List<String> delivered = new ArrayList<>(); // targets already notified
+
+        public enum EventType {
+            TRIP_CREATED, TRIP_STARTED, TRIP_COMPLETED
+        }
+
+        public static TripEvent of(EventType type, String actorId, String actorType) {
+            TripEvent event = new TripEvent();
+            event.setEventId(UUID.randomUUID().toString());
+            event.setType(type);
+            event.setCreatedAt(System.currentTimeMillis());
+            event.setActorId(actorId);
+            event.setActorType(actorType);
+            return event;
+        }
+    }
 }
 
@@ -0,0 +1,379 @@
+package com.lastmile.trip.outbox;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.lastmile.driver.proto.*;
+import com.lastmile.rider.proto.*;
+import com.lastmile.trip.cache.DisplayNameCache;
+import com.lastmile.trip.grpc.ServiceIdentity;
+import com.lastmile.trip.model.Trip;
+import com.lastmile.user.proto.*;
+import io.grpc.Deadline;
+import io.grpc.stub.AbstractStub;
+import net.devh.boot.grpc.client.inject.GrpcClient;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Delivers the trip outbox to driver-service and rider-service.
+ *
+ * Trips with due events are claimed with a short lease, a batch at a time, and handled in
+ * parallel. Events of one trip are delivered strictly in order: a failing event is retried
+ * with exponential backoff and holds back the events queued behind it. Each event remembers
+ * which targets already accepted it, so a retry only re-sends to the ones that failed.
+ *
+ * Every write made while delivering is conditional on the claim's lease token. A relay whose
+ * lease ran out stops at its next write instead of releasing or reordering the new holder's work.
+ */
+@Component
+public class TripOutboxRelay {
+
+    private static final String DRIVER = "driver";
+    private static final String RIDER = "rider";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private DisplayNameCache displayNames;
+
+    @Autowired
+    private ServiceIdentity serviceIdentity;
+
+    @GrpcClient("rider-service")
+    private RiderServiceGrpc.RiderServiceFutureStub riderStub;
+
+    @GrpcClient("driver-service")
+    private DriverServiceGrpc.DriverServiceFutureStub driverStub;
+
+    @GrpcClient("user-service")
+    private UserServiceGrpc.UserServiceFutureStub userStub;
+
+    @Value("${trip.outbox.batch-size:50}")
+    private int batchSize;
+
+    @Value("${trip.outbox.worker-threads:8}")
+    private int workerThreads;
+
+    @Value("${trip.outbox.lease-ms:30000}")
+    private long leaseMs;
+
+    @Value("${trip.outbox.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${trip.outbox.retry-base-ms:1000}")
+    private long retryBaseMs;
+
+    @Value("${trip.outbox.retry-max-ms:60000}")
+    private long retryMaxMs;
+
+    // Shared deadline for all downstream calls made for one event
+    @Value("${trip.outbox.call-timeout-ms:3000}")
+    private long callTimeoutMs;
+
+    private ExecutorService workers;
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.indexOps(Trip.class).ensureIndex(new Index()
+                .on("outboxDueAt", Sort.Direction.ASC)
+                .sparse()
+                .named("outbox_due"));
+        workers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    @Scheduled(fixedDelayString = "${trip.outbox.poll-interval-ms:250}")
+    public void relay() {
+        long now = System.currentTimeMillis();
+        List<Future<?>> inFlight = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            Trip trip = claim(now);
+            if (trip == null) break;
+            inFlight.add(workers.submit(() -> deliver(trip)));
+        }
+
+        for (Future<?> future : inFlight) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                System.err.println("Trip outbox worker failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private Trip claim(long now) {
+        Query query = new Query(Criteria.where("outboxDueAt").lte(now).orOperator(
+                Criteria.where("outboxLeaseUntil").is(null),
+                Criteria.where("outboxLeaseUntil").lt(now)))
+                .with(Sort.by("outboxDueAt"));
+        Update update = new Update()
+                .set("outboxLeaseUntil", now + leaseMs)
+                .set("outboxLeaseToken", UUID.randomUUID().toString());
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Trip.class);
+    }
+
+    // Matches the trip only while this relay still holds the lease it claimed
+    private static Criteria leased(Trip trip) {
+        return Criteria.where("_id").is(trip.getTripId()).and("outboxLeaseToken").is(trip.getOutboxLeaseToken());
+    }
+
+    private void deliver(Trip trip) {
+        Long retryAt = null;
+        boolean held = true;
+        try {
+            for (Trip.TripEvent event : trip.getOutbox() != null ? trip.getOutbox() : List.<Trip.TripEvent>of()) {
+                Set<String> delivered = ConcurrentHashMap.newKeySet();
+                delivered.addAll(event.getDelivered());
+
+                String error;
+                try {
+                    error = dispatch(trip, event, delivered);
+                } catch (Exception e) {
+                    error = e.getMessage();
+                }
+
+                if (error == null) {
+                    held = mongoTemplate.updateFirst(new Query(leased(trip)),
+                            new Update().pull("outbox", Query.query(Criteria.where("eventId").is(event.getEventId()))),
+                            Trip.class).getMatchedCount() > 0;
+                    if (!held) break;
+                    continue;
+                }
+
+                int attempts = event.getAttempts() + 1;
+                event.setAttempts(attempts);
+                event.setLastError(error);
+                event.setDelivered(new ArrayList<>(delivered));
+                if (attempts >= maxAttempts) {
+                    System.err.println("Giving up on " + event.getType() + " for trip " + trip.getTripId() + ": " + error);
+                    held = mongoTemplate.updateFirst(new Query(leased(trip)), new Update()
+                            .pull("outbox", Query.query(Criteria.where("eventId").is(event.getEventId())))
+                            .push("failedEvents", event), Trip.class).getMatchedCount() > 0;
+                    if (!held) break;
+                    continue;
+                }
+
+                System.err.println("Failed to deliver " + event.getType() + " for trip " + trip.getTripId()
+                        + " (attempt " + attempts + "): " + error);
+                held = mongoTemplate.updateFirst(new Query(leased(trip)
+                        .and("outbox.eventId").is(event.getEventId())), new Update()
+                        .set("outbox.$.attempts", attempts)
+                        .set("outbox.$.lastError", error)
+                        .set("outbox.$.delivered", event.getDelivered()), Trip.class).getMatchedCount() > 0;
+                retryAt = System.currentTimeMillis() + Math.min(retryMaxMs, retryBaseMs << Math.min(attempts - 1, 20));
+                // Later events of this trip wait for this one
+                break;
+            }
+        } finally {
+            if (held) {
+                release(trip, retryAt);
+            } else {
+                // The lease expired mid-delivery and another relay claimed the trip; it owns the rest
+                System.err.println("Lost outbox lease on trip " + trip.getTripId() + "; leaving it to the new holder");
+            }
+        }
+    }
+
+    /**
+     * Drops the lease and schedules the next look at the trip: at retryAt after a failure,
+     * immediately if events were queued meanwhile, never if the outbox is empty. Does nothing if
+     * the lease has since passed to another relay.
+     */
+    private void release(Trip trip, Long retryAt) {
+        long dueAt = retryAt != null ? retryAt : System.currentTimeMillis();
+        Document set = new Document("outboxDueAt", new Document("$cond", List.of(
+                new Document("$gt", List.of(new Document("$size", new Document("$ifNull", Arrays.asList("$outbox", List.of()))), 0)),
+                dueAt,
+                "$$REMOVE")))
+                .append("outboxLeaseUntil", "$$REMOVE")
+                .append("outboxLeaseToken", "$$REMOVE");
+        mongoTemplate.updateFirst(new Query(leased(trip)),
+                AggregationUpdate.from(List.of(context -> new Document("$set", set))), Trip.class);
+    }
+
+    /**
+     * Sends one event to every target that has not accepted it yet, concurrently.
+     * Returns null when all targets are done, otherwise the failures.
+     */
+    private String dispatch(Trip trip, Trip.TripEvent event, Set<String> delivered) {
+        Deadline deadline = Deadline.after(callTimeoutMs, TimeUnit.MILLISECONDS);
+        RiderServiceGrpc.RiderServiceFutureStub rider = prepare(riderStub, event, deadline);
+        DriverServiceGrpc.DriverServiceFutureStub driver = prepare(driverStub, event, deadline);
+        UserServiceGrpc.UserServiceFutureStub user = prepare(userStub, event, deadline);
+
+        String tripId = trip.getTripId();
+        String driverId = trip.getDriverId();
+        String riderId = trip.getRiderId();
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        switch (event.getType()) {
+            case TRIP_CREATED -> {
+                // Both display names come from the cache or one batch call
+                CompletableFuture<Map<String, String>> names = displayNames.resolve(user, List.of(riderId, driverId),
+                        id -> (id.equals(driverId) ? "Driver " : "Rider ") + id);
+                if (!delivered.contains(DRIVER)) {
+                    // Rider rating and name are looked up concurrently, then the driver is notified
+                    CompletableFuture<Double> riderRating = toCompletable(rider.getRiderInfo(
+                            GetRiderInfoRequest.newBuilder().setRiderId(riderId).build()))
+                        .thenApply(info -> info.getSuccess() ? info.getRating() : 0.0)
+                        .exceptionally(e -> {
+                            System.err.println("Failed to fetch rider info: " + e.getMessage());
+                            return 0.0;
+                        });
+                    CompletableFuture<String> riderName = names.thenApply(n -> n.get(riderId));
+                    results.add(send(DRIVER, delivered, riderRating.thenCombine(riderName, (rating, name) ->
+                            AcceptTripRequest.newBuilder()
+                                .setDriverId(driverId)
+                                .setTripId(tripId)
+                                .setRiderId(riderId)
+                                .setRiderName(name)
+                                .setRiderRating(rating)
+                                .setPickupStation(trip.getPickupStation())
+                                .setDestination(trip.getDestination())
+                                .setFare(trip.getFare())
+                                .build())
+                            .thenCompose(request -> toCompletable(driver.acceptTrip(request)))
+                            .thenApply(response -> response.getSuccess() ? null : response.getMessage()),
+                        () -> publishTripUpdate(tripId, "SCHEDULED", driverId)));
+                }
+                if (!delivered.contains(RIDER)) {
+                    results.add(send(RIDER, delivered, names.thenApply(n -> n.get(driverId))
+                            .thenCompose(name -> toCompletable(rider.matchedWithDriver(MatchedWithDriverRequest.newBuilder()
+                                .setRiderId(riderId)
+                                .setDriverId(driverId)
+                                .setTripId(tripId)
+                                .setDriverName(name)
+                                .build())))
+                            .thenApply(response -> response.getSuccess() ? null : response.getMessage()),
+                        null));
+                }
+            }
+            case TRIP_STARTED -> {
+                if (!delivered.contains(DRIVER)) {
+                    results.add(send(DRIVER, delivered, toCompletable(driver.startTrip(StartTripRequest.newBuilder()
+                                .setDriverId(driverId)
+                                .setTripId(tripId)
+                                .build()))
+                            .thenApply(response -> response.getSuccess() ? null : response.getMessage()),
+                        () -> publishTripUpdate(tripId, "ACTIVE", driverId)));
+                }
+                if (!delivered.contains(RIDER)) {
+                    results.add(send(RIDER, delivered, toCompletable(rider.rideStarted(RideStartedRequest.newBuilder()
+                                .setRiderId(riderId)
+                                .setTripId(tripId)
+                                .build()))
+                            .thenApply(response -> response.getSuccess() ? null : response.getMessage()),
+                        null));
+                }
+            }
+            case TRIP_COMPLETED -> {
+                if (!delivered.contains(DRIVER)) {
+                    results.add(send(DRIVER, delivered, toCompletable(driver.completeActiveTrip(CompleteActiveTripRequest.newBuilder()
+                                .setDriverId(driverId)
+                                .setTripId(tripId)
+                                .build()))
+                            .thenApply(response -> response.getSuccess() ? null : response.getMessage()),
+                        () -> publishTripUpdate(tripId, "COMPLETED", driverId)));
+                }
+                if (!delivered.contains(RIDER)) {
+                    results.add(send(RIDER, delivered, toCompletable(rider.rideCompleted(RideCompletedRequest.newBuilder()
+                                .setRiderId(riderId)
+                                .setTripId(tripId)
+                                .setDropoffTime(trip.getDropoffTime())
+                                .setFare(trip.getFare())
+                                .build()))
+                            .thenApply(response -> response.getSuccess() ? null : response.getMessage()),
+                        null));
+                }
+            }
+        }
+
+        // Every call is bound by the deadline, so this returns within it
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        StringJoiner errors = new StringJoiner("; ");
+        for (CompletableFuture<String> result : results) {
+            if (result.join() != null) errors.add(result.join());
+        }
+        return errors.length() == 0 ? null : errors.toString();
+    }
+
+    /**
+     * Completes with null once the target accepted the event, or with the transport error.
+     * A target that answers but rejects the change is not retried: resending would not change its answer.
+     */
+    private CompletableFuture<String> send(String target, Set<String> delivered,
+                                           CompletableFuture<String> call, Runnable onDelivered) {
+        return call.handle((rejection, e) -> {
+            if (e != null) {
+                return target + ": " + e.getMessage();
+            }
+            if (rejection != null) {
+                System.err.println("Trip event rejected by " + target + "-service: " + rejection);
+            }
+            delivered.add(target);
+            if (onDelivered != null) onDelivered.run();
+            return null;
+        });
+    }
+
+    private void publishTripUpdate(String tripId, String status, String driverId) {
+        // Publish to trip channel
+        redisTemplate.convertAndSend("trip-updates:" + tripId, tripId + "," + status);
+
+        // Publish to driver dashboard
+        if (driverId != null) {
+            redisTemplate.convertAndSend("driver-dashboard:" + driverId, "TRIP_UPDATE," + tripId + "," + status);
+        }
+    }
+
+    // Delivered as trip-service on behalf of the user who caused the event; the credential is
+    // minted per call, so retries long after that user's token expired still go through
+    private <T extends AbstractStub<T>> T prepare(T stub, Trip.TripEvent event, Deadline deadline) {
+        return stub.withDeadline(deadline)
+                .withInterceptors(serviceIdentity.forUser(event.getActorId(), event.getActorType()));
+    }
+
+    private static <T> CompletableFuture<T> toCompletable(ListenableFuture<T> listenable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Futures.addCallback(listenable, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+}
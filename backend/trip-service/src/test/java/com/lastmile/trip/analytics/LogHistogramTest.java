@@ -0,0 +1,136 @@
+package com.lastmile.trip.analytics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogHistogramTest {
+
+    @Test
+    void testBuckets_SmallValuesAreExact() {
+        for (long value = 0; value < 8; value++) {
+            int index = LogHistogram.bucketIndex(value);
+            assertEquals(value, LogHistogram.bucketLowerBound(index));
+            assertEquals(1, LogHistogram.bucketWidth(index));
+        }
+    }
+
+    @Test
+    void testBuckets_AreContiguousAndContainTheirBounds() {
+        int last = LogHistogram.bucketIndex(Long.MAX_VALUE);
+        for (int index = 0; index < last; index++) {
+            long lower = LogHistogram.bucketLowerBound(index);
+            long width = LogHistogram.bucketWidth(index);
+            assertEquals(index, LogHistogram.bucketIndex(lower), "lower bound of bucket " + index);
+            assertEquals(index, LogHistogram.bucketIndex(lower + width - 1), "upper bound of bucket " + index);
+            assertEquals(lower + width, LogHistogram.bucketLowerBound(index + 1), "gap after bucket " + index);
+        }
+        assertEquals(last, LogHistogram.bucketIndex(LogHistogram.bucketLowerBound(last)));
+    }
+
+    @Test
+    void testBuckets_WidthStaysWithinAnEighthOfTheValue() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long value = 8 + (random.nextLong() >>> 1) % (1L << random.nextInt(62));
+            int index = LogHistogram.bucketIndex(value);
+            long lower = LogHistogram.bucketLowerBound(index);
+            assertTrue(lower <= value && value < lower + LogHistogram.bucketWidth(index), "value " + value);
+            assertTrue(LogHistogram.bucketWidth(index) * 8 <= lower, "bucket " + index + " too wide");
+        }
+    }
+
+    @Test
+    void testPercentile_WithinBucketErrorOfExactRank() {
+        LogHistogram histogram = new LogHistogram();
+        int n = 100_000;
+        for (int value = 1; value <= n; value++) {
+            histogram.record(value);
+        }
+
+        for (double percentile : new double[] {1, 25, 50, 90, 99, 99.9}) {
+            long exact = (long) Math.ceil(percentile / 100.0 * n);
+            long reported = histogram.percentile(percentile);
+            assertEquals(exact, reported, exact * 0.125, "p" + percentile);
+        }
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(n, histogram.percentile(100));
+        assertEquals(n, histogram.getCount());
+        assertEquals((n + 1) / 2.0, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    void testPercentile_ClampedToObservedRange() {
+        LogHistogram histogram = new LogHistogram();
+        assertEquals(0, histogram.percentile(50));
+
+        // 1000 falls in a bucket 64 wide; reporting its midpoint would overshoot the only value
+        histogram.record(1000);
+        histogram.record(-5); // ignored
+        assertEquals(1, histogram.getCount());
+        assertEquals(1000, histogram.percentile(0));
+        assertEquals(1000, histogram.percentile(50));
+        assertEquals(1000, histogram.percentile(100));
+    }
+
+    @Test
+    void testMerge_EqualsRecordingEverythingInOne() {
+        LogHistogram all = new LogHistogram();
+        LogHistogram small = new LogHistogram();
+        LogHistogram large = new LogHistogram();
+        Random random = new Random(7);
+        for (int i = 0; i < 5_000; i++) {
+            long value = random.nextInt(1_000);
+            all.record(value);
+            small.record(value);
+        }
+        for (int i = 0; i < 5_000; i++) {
+            long value = 1_000_000 + random.nextInt(10_000_000);
+            all.record(value);
+            large.record(value);
+        }
+
+        // Merging the shorter histogram into the longer one and the reverse must agree
+        LogHistogram merged = small.copy();
+        merged.merge(large);
+        LogHistogram reversed = large.copy();
+        reversed.merge(small);
+
+        assertEquals(all.toDocument(), merged.toDocument());
+        assertEquals(all.toDocument(), reversed.toDocument());
+        assertEquals(all.percentile(50), merged.percentile(50));
+        assertEquals(all.percentile(99), merged.percentile(99));
+        assertEquals(5_000, small.getCount(), "copy must not share buckets with the original");
+    }
+
+    @Test
+    void testMerge_EmptyHistogramChangesNothing() {
+        LogHistogram histogram = new LogHistogram();
+        histogram.record(3);
+        histogram.record(300);
+
+        histogram.merge(new LogHistogram());
+        assertEquals(2, histogram.getCount());
+        assertEquals(3, histogram.percentile(0));
+        assertEquals(300, histogram.getMax());
+
+        LogHistogram empty = new LogHistogram();
+        empty.merge(histogram);
+        assertEquals(histogram.toDocument(), empty.toDocument());
+    }
+
+    @Test
+    void testDocument_RoundTrips() {
+        LogHistogram histogram = new LogHistogram();
+        for (long value : new long[] {0, 7, 8, 9, 1_234, 98_765_432_100L}) {
+            histogram.record(value);
+        }
+
+        LogHistogram restored = LogHistogram.fromDocument(histogram.toDocument());
+        assertEquals(histogram.toDocument(), restored.toDocument());
+        assertEquals(histogram.percentile(50), restored.percentile(50));
+        assertEquals(0, LogHistogram.fromDocument(null).getCount());
+    }
+}
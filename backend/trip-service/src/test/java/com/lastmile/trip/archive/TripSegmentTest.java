@@ -0,0 +1,122 @@
+package com.lastmile.trip.archive;
+
+import com.lastmile.trip.model.Trip;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TripSegmentTest {
+
+    private static final long BASE = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testWrite_RoundTripsEveryColumn() throws IOException {
+        List<Trip> trips = new ArrayList<>();
+        trips.add(trip("t-3", "driver-b", "rider-1", BASE + 5_000, 120_000, 900_000, 75));
+        trips.add(trip("t-1", "driver-a", "rider-2", BASE, 60_000, 600_000, 50));
+        // Same createdAt as t-3, so the trip ID decides the order
+        trips.add(trip("t-2", "driver-a", "rider-1", BASE + 5_000, 0, 0, 0));
+        // Dropoff before pickup and a large fare exercise the zigzag deltas
+        trips.add(trip("t-4", null, null, BASE + 86_400_000L * 400, 3_000, -1_000, Integer.MAX_VALUE));
+
+        TripSegment.Meta written = TripSegment.write(dir, trips);
+        List<Trip> rows = TripSegment.readRows(written.path());
+
+        List<Trip> expected = new ArrayList<>(trips);
+        expected.sort(Comparator.comparingLong(Trip::getCreatedAt).thenComparing(Trip::getTripId));
+        assertEquals(List.of("t-1", "t-2", "t-3", "t-4"), rows.stream().map(Trip::getTripId).toList());
+        for (int i = 0; i < expected.size(); i++) {
+            Trip want = expected.get(i);
+            Trip got = rows.get(i);
+            assertEquals(want.getDriverId() == null ? "" : want.getDriverId(), got.getDriverId());
+            assertEquals(want.getRiderId() == null ? "" : want.getRiderId(), got.getRiderId());
+            assertEquals(want.getPickupStation(), got.getPickupStation());
+            assertEquals(want.getDestination(), got.getDestination());
+            assertEquals(want.getCreatedAt(), got.getCreatedAt());
+            assertEquals(want.getPickupTime(), got.getPickupTime());
+            assertEquals(want.getDropoffTime(), got.getDropoffTime());
+            assertEquals(want.getFare(), got.getFare());
+            assertEquals(Trip.TripStatus.COMPLETED, got.getStatus());
+        }
+    }
+
+    @Test
+    void testReadMeta_MatchesWrittenHeader() throws IOException {
+        TripSegment.Meta written = TripSegment.write(dir, List.of(
+                trip("t-1", "driver-c", "rider-1", BASE + 10, 1, 2, 3),
+                trip("t-2", "driver-a", "rider-2", BASE, 1, 2, 3),
+                trip("t-3", "driver-b", "rider-3", BASE + 20, 1, 2, 3)));
+
+        TripSegment.Meta read = TripSegment.readMeta(written.path());
+
+        assertEquals(3, read.rowCount());
+        assertEquals(BASE, read.minCreatedAt());
+        assertEquals(BASE + 20, read.maxCreatedAt());
+        assertEquals("driver-a", read.minDriverId());
+        assertEquals("driver-c", read.maxDriverId());
+        assertArrayEquals(written.bloom(), read.bloom());
+        assertTrue(read.overlapsTime(BASE + 20, BASE + 21));
+        assertFalse(read.overlapsTime(BASE + 21, Long.MAX_VALUE));
+        assertTrue(read.mayHaveDriver("driver-b"));
+        assertFalse(read.mayHaveDriver("driver-d"));
+    }
+
+    @Test
+    void testBloom_HasNoFalseNegativesAndFewFalsePositives() throws IOException {
+        List<Trip> trips = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            trips.add(trip(UUID.randomUUID().toString(), "driver-" + (i % 50), "rider-" + i, BASE + i, 1, 1, 10));
+        }
+        TripSegment.Meta meta = TripSegment.readMeta(TripSegment.write(dir, trips).path());
+
+        for (Trip trip : trips) {
+            assertTrue(meta.mayHaveTrip(trip.getTripId()), trip.getTripId());
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (meta.mayHaveTrip(UUID.randomUUID().toString())) falsePositives++;
+        }
+        // 10 bits per row and 7 hashes give about 1%
+        assertTrue(falsePositives < 300, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void testWrite_EmptySegment() throws IOException {
+        TripSegment.Meta meta = TripSegment.write(dir, List.of());
+
+        assertEquals(0, TripSegment.readMeta(meta.path()).rowCount());
+        assertTrue(TripSegment.readRows(meta.path()).isEmpty());
+    }
+
+    @Test
+    void testReadMeta_RejectsForeignFile() throws IOException {
+        Path other = dir.resolve("other.seg");
+        Files.write(other, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        assertThrows(IOException.class, () -> TripSegment.readMeta(other));
+    }
+
+    private static Trip trip(String tripId, String driverId, String riderId, long createdAt,
+                             long pickupAfter, long dropoffAfter, int fare) {
+        Trip trip = new Trip();
+        trip.setTripId(tripId);
+        trip.setDriverId(driverId);
+        trip.setRiderId(riderId);
+        trip.setPickupStation("Station " + tripId);
+        trip.setDestination("Destination " + (fare % 3));
+        trip.setCreatedAt(createdAt);
+        trip.setPickupTime(createdAt + pickupAfter);
+        trip.setDropoffTime(createdAt + pickupAfter + dropoffAfter);
+        trip.setFare(fare);
+        return trip;
+    }
+}
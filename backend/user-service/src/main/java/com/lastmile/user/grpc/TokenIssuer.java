@@ -0,0 +1,50 @@
+package com.lastmile.user.grpc;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Issues the signed access tokens that TokenVerifier checks in every service, and revokes them
+ * on logout by adding their ID to the shared deny list.
+ */
+@Component
+public class TokenIssuer {
+
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+
+    private final SecureRandom random = new SecureRandom();
+
+    @Autowired
+    private TokenVerifier tokenVerifier;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Value("${auth.token.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    public String issue(String userId, String userType) {
+        byte[] id = new byte[12];
+        random.nextBytes(id);
+        long expiresAt = System.currentTimeMillis() + ttlMinutes * 60_000;
+        String payload = BASE64.encodeToString(
+                (userId + "|" + userType + "|" + expiresAt + "|" + BASE64.encodeToString(id)).getBytes(StandardCharsets.UTF_8));
+        return payload + "." + BASE64.encodeToString(tokenVerifier.sign(payload));
+    }
+
+    /**
+     * Denies the token until it would have expired, and tells every pod straight away.
+     */
+    public void revoke(TokenVerifier.Claims claims) {
+        long now = System.currentTimeMillis();
+        redisTemplate.opsForZSet().add(TokenVerifier.DENY_LIST_KEY, claims.tokenId(), claims.expiresAt());
+        redisTemplate.opsForZSet().removeRangeByScore(TokenVerifier.DENY_LIST_KEY, 0, now);
+        redisTemplate.convertAndSend(TokenVerifier.REVOKED_CHANNEL, claims.tokenId() + "," + claims.expiresAt());
+    }
+}
@@ -6,11 +6,15 @@ import com.lastmile.user.repository.UserRepository;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.redis.core.RedisTemplate;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 @GrpcService
 public class UserGrpcService extends UserServiceGrpc.UserServiceImplBase {
@@ -21,6 +25,19 @@ public class UserGrpcService extends UserServiceGrpc.UserServiceImplBase {
     @Autowired
     private RedisTemplate<String, String> redisTemplate;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private TokenIssuer tokenIssuer;
+
+    @Autowired
+    private TokenVerifier tokenVerifier;
+
+    // Subscribers (e.g. trip-service's display-name cache) drop the user from their caches
+    private static final String PROFILE_CHANGED_CHANNEL = "user-profile-changed";
+
+    private static final int MAX_BATCH_SIZE = 500;
     
     @Override
     public void registerUser(RegisterUserRequest request,
@@ -49,8 +66,7 @@ public class UserGrpcService extends UserServiceGrpc.UserServiceImplBase {
                 
                 user = userRepository.save(user);
                 
-                String token = UUID.randomUUID().toString();
-                redisTemplate.opsForValue().set("token:" + token, user.getUserId(), 1, TimeUnit.HOURS);
+                String token = tokenIssuer.issue(user.getUserId(), user.getUserType().name());
                 
                 responseBuilder.setUserId(user.getUserId())
                         .setToken(token)
@@ -81,8 +97,7 @@ public class UserGrpcService extends UserServiceGrpc.UserServiceImplBase {
                         .setMessage("Invalid credentials");
             } else {
                 User user = userOpt.get();
-                String token = UUID.randomUUID().toString();
-                redisTemplate.opsForValue().set("token:" + token, user.getUserId(), 1, TimeUnit.HOURS);
+                String token = tokenIssuer.issue(user.getUserId(), user.getUserType().name());
                 
                 responseBuilder.setUserId(user.getUserId())
                         .setToken(token)
@@ -126,6 +141,66 @@ public class UserGrpcService extends UserServiceGrpc.UserServiceImplBase {
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void updateUserProfile(UpdateUserProfileRequest request,
+                                  StreamObserver<UpdateUserProfileResponse> responseObserver) {
+        String userId = request.getUserId();
+        String name = request.getName();
+
+        UpdateUserProfileResponse.Builder responseBuilder = UpdateUserProfileResponse.newBuilder();
+
+        try {
+            if (!userId.equals(AuthInterceptor.USER_ID_KEY.get())) {
+                responseBuilder.setSuccess(false).setMessage("Can only update your own profile");
+            } else if (name.isBlank()) {
+                responseBuilder.setSuccess(false).setMessage("Name is required");
+            } else {
+                long matched = mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(userId)),
+                        new Update().set("name", name), User.class).getMatchedCount();
+                if (matched > 0) {
+                    redisTemplate.convertAndSend(PROFILE_CHANGED_CHANNEL, userId);
+                    responseBuilder.setSuccess(true).setMessage("Profile updated");
+                } else {
+                    responseBuilder.setSuccess(false).setMessage("User not found");
+                }
+            }
+        } catch (Exception e) {
+            responseBuilder.setSuccess(false).setMessage(e.getMessage());
+        }
+
+        responseObserver.onNext(responseBuilder.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void batchGetUserProfiles(BatchGetUserProfilesRequest request,
+                                     StreamObserver<BatchGetUserProfilesResponse> responseObserver) {
+        BatchGetUserProfilesResponse.Builder responseBuilder = BatchGetUserProfilesResponse.newBuilder();
+
+        try {
+            List<String> userIds = request.getUserIdsList();
+            if (userIds.size() > MAX_BATCH_SIZE) {
+                userIds = userIds.subList(0, MAX_BATCH_SIZE);
+            }
+            // Only the public fields; email, phone and password never leave the database
+            Query query = new Query(Criteria.where("_id").in(userIds));
+            query.fields().include("name", "userType");
+            for (User user : mongoTemplate.find(query, User.class)) {
+                responseBuilder.addUsers(UserSummary.newBuilder()
+                        .setUserId(user.getUserId())
+                        .setName(user.getName() == null ? "" : user.getName())
+                        .setUserType(user.getUserType() == User.UserType.DRIVER ?
+                                com.lastmile.user.proto.UserType.DRIVER : com.lastmile.user.proto.UserType.RIDER));
+            }
+            responseBuilder.setSuccess(true);
+        } catch (Exception e) {
+            responseBuilder.setSuccess(false);
+        }
+
+        responseObserver.onNext(responseBuilder.build());
+        responseObserver.onCompleted();
+    }
+
     @Override
     public void logoutUser(LogoutUserRequest request, StreamObserver<LogoutUserResponse> responseObserver) {
         LogoutUserResponse.Builder builder = LogoutUserResponse.newBuilder();
@@ -135,10 +210,14 @@ public class UserGrpcService extends UserServiceGrpc.UserServiceImplBase {
             if (token == null) {
                 builder.setSuccess(false).setMessage("No token in context");
             } else {
-                String redisKey = "token:" + token;
-                String existing = redisTemplate.opsForValue().get(redisKey);
-                Boolean deleted = redisTemplate.delete(redisKey);
-                builder.setSuccess(true).setMessage(deleted != null && deleted ? "Logged out" : "Token already invalidated");
+                TokenVerifier.Claims claims = tokenVerifier.verify(token);
+                if (claims == null) {
+                    builder.setSuccess(true).setMessage("Token already invalidated");
+                } else {
+                    // Every pod denies the token from now until it would have expired
+                    tokenIssuer.revoke(claims);
+                    builder.setSuccess(true).setMessage("Logged out");
+                }
             }
         } catch (Exception e) {
             builder.setSuccess(false).setMessage(e.getMessage());
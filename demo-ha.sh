@@ -10,18 +10,28 @@ if [ "$REPLICAS" -lt 2 ]; then
     kubectl rollout status deployment/matching-service
 fi
 
-echo "Injecting dummy authentication token into Redis..."
-REDIS_POD=$(kubectl get pods -l app=redis -o jsonpath="{.items[0].metadata.name}")
-kubectl exec $REDIS_POD -- redis-cli set token:ha-test-token ha-test-user
-echo "Token injected."
-
 echo "Starting traffic loop (hitting Gateway)..."
+# Tokens are signed by user-service, so the client registers a test rider (a no-op if it
+# already exists) and logs in through the gateway to get a real one
 kubectl run ha-test-client --image=curlimages/curl --restart=Never -- /bin/sh -c '
+  CREDS="{\"email\": \"ha-test@lastmile.local\", \"password\": \"ha-test-password\"}"
+  curl -s -o /dev/null -X POST http://lastmile-gateway:8080/user/register \
+    -H "Content-Type: application/json" \
+    -d "{\"email\": \"ha-test@lastmile.local\", \"password\": \"ha-test-password\", \"name\": \"HA Test\", \"user_type\": \"RIDER\"}"
+  LOGIN=$(curl -s -X POST http://lastmile-gateway:8080/user/login \
+    -H "Content-Type: application/json" -d "$CREDS")
+  TOKEN=$(echo "$LOGIN" | sed -n "s/.*\"token\": *\"\([^\"]*\)\".*/\1/p")
+  RIDER_ID=$(echo "$LOGIN" | sed -n "s/.*\"userId\": *\"\([^\"]*\)\".*/\1/p")
+  if [ -z "$TOKEN" ]; then
+    echo "$(date): Login failed: $LOGIN"
+    exit 1
+  fi
+  echo "$(date): Logged in as $RIDER_ID"
   while true; do 
     http_code=$(curl -s -o /dev/null -w "%{http_code}" -X POST http://lastmile-gateway:8080/match \
       -H "Content-Type: application/json" \
-      -H "Authorization: Bearer ha-test-token" \
-      -d "{\"rider_id\": \"ha-test\", \"metro_station\": \"A\", \"destination\": \"B\", \"arrival_time\": 0}")
+      -H "Authorization: Bearer $TOKEN" \
+      -d "{\"rider_id\": \"$RIDER_ID\", \"metro_station\": \"A\", \"destination\": \"B\", \"arrival_time\": 0}")
     if [ "$http_code" == "200" ]; then
         echo "$(date): Request Successful (200)"
     else
@@ -13,7 +13,7 @@ import { Tabs, TabsContent, TabsList, TabsTrigger } from './ui/tabs';
 import { useLoadScript } from '@react-google-maps/api';
 
 // API & gRPC Imports
-import { driverApi, locationApi, tripApi, stationApi, matchingApi } from '../lib/api';
+import { driverApi, locationApi, tripApi, matchingApi } from '../lib/api';
 import { driverClient } from '../lib/grpc';
 import * as DriverPb from '../proto/driver_pb.js';
 
@@ -374,8 +374,8 @@ export function DriverDashboard({ user }: DriverDashboardProps) {
     }
 
     try {
-      // 1. Calculate Route Points for Station Matching
-      let metroStations: string[] = [];
+      // 1. Calculate Route Points; the backend resolves the stations along them
+      let routePoints: { latitude: number; longitude: number }[] = [];
       if (isLoaded && window.google) {
         const directionsService = new window.google.maps.DirectionsService();
         const result = await directionsService.route({
@@ -385,17 +385,10 @@ export function DriverDashboard({ user }: DriverDashboardProps) {
         });
 
         if (result.routes[0]?.overview_path) {
-          const points = result.routes[0].overview_path.map(p => ({
+          routePoints = result.routes[0].overview_path.map(p => ({
             latitude: p.lat(),
             longitude: p.lng()
           }));
-          // Fetch stations (One-time REST call)
-          const { data } = await stationApi.getStationsAlongRoute(
-            `${currentLocation.lat},${currentLocation.lng}`,
-            destination,
-            points
-          );
-          metroStations = data?.stations?.map((s: any) => s.name) || [];
         }
       }
 
@@ -406,11 +399,12 @@ export function DriverDashboard({ user }: DriverDashboardProps) {
         longitude: currentLocation.lng
       });
 
-      await driverApi.registerRoute(user.id, {
+      const { data: routeResult } = await driverApi.registerRoute(user.id, {
         destination,
         availableSeats,
-        metroStations,
+        routePoints,
       });
+      const metroStations: string[] = routeResult?.metroStations || [];
 
       // 3. Update Local State
       const newRoute = {
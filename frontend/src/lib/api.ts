@@ -55,7 +55,8 @@ export interface LatLng {
 export interface RegisterRoutePayload {
   destination: string;
   availableSeats: number;
-  metroStations: string[];
+  metroStations?: string[];
+  routePoints?: LatLng[];
 }
 
 export interface RegisterRideRequestPayload {
@@ -85,10 +86,26 @@ export const userApi = {
   logout: () => api.post('/user/logout', {}),
 };
 
+// Last station list fetched, reused when the server reports it unchanged
+let cachedStations: { version: string; data: any } | null = null;
+
 export const stationApi = {
   getStationsAlongRoute: (origin: string, destination: string, routePoints: LatLng[]) =>
     api.post('/station/route', { origin, destination, routePoints }),
-  getAllStations: () => api.get('/station'),
+  getAllStations: () =>
+    api.get('/station', { params: cachedStations ? { if_version: cachedStations.version } : undefined })
+      .then((response: any) => {
+        // The gateway returns camelCase JSON names; accept either spelling
+        const notModified = response.data?.notModified ?? response.data?.not_modified;
+        if (notModified && cachedStations) {
+          return { ...response, data: cachedStations.data };
+        }
+        // Only a reply that carries the list may replace the cached one
+        if (response.data?.version && response.data?.stations?.length) {
+          cachedStations = { version: response.data.version, data: response.data };
+        }
+        return response;
+      }),
 };
 
 export const driverApi = {
@@ -100,7 +117,20 @@ export const driverApi = {
 export const riderApi = {
   registerRideRequest: (riderId: string, data: RegisterRideRequestPayload) => api.post(`/rider/ride-register/${riderId}`, data),
   getRideStatus: (riderId: string) => api.get(`/rider/ride-status/${riderId}`),
-  listRideRequests: (riderId: string) => api.get(`/rider/ride-requests/${riderId}`),
+  // The server pages the history, so follow nextPageToken until every page has been read
+  listRideRequests: async (riderId: string) => {
+    const rideRequests: any[] = [];
+    let pageToken = '';
+    let response: any;
+    do {
+      response = await api.get(`/rider/ride-requests/${riderId}`, {
+        params: { page_size: 100, ...(pageToken ? { page_token: pageToken } : {}) },
+      });
+      rideRequests.push(...(response.data?.rideRequests ?? response.data?.ride_requests ?? []));
+      pageToken = response.data?.nextPageToken ?? response.data?.next_page_token ?? '';
+    } while (pageToken);
+    return { ...response, data: { ...response.data, rideRequests, nextPageToken: '' } };
+  },
   getDashboard: (riderId: string) => api.get(`/rider/dashboard/${riderId}`),
 };
 